@@ -0,0 +1,42 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+// In-memory copy of a row from the accounts table.
+// Fields are volatile since profiles are read from Velocity and JDA threads while being updated by commands.
+class AccountProfile {
+    final UUID account;
+    volatile String minecraftUser;
+    volatile String minecraftName;
+    volatile String discordId;
+    volatile boolean onlineDiscordDMs;
+    volatile boolean offlineDiscordDMs;
+    volatile double deathAlertDelay;
+    volatile String msgReplyUser;
+
+    AccountProfile(UUID account) {
+        this.account = account;
+    }
+
+    // Builds a profile from the current row of a "SELECT * FROM accounts" result set
+    static AccountProfile fromResultSet(ResultSet resultSet) throws SQLException {
+        AccountProfile profile = new AccountProfile(SQLiteDatabaseConnector.bytesToUUID(resultSet.getBytes("minecraftUUID")));
+        profile.minecraftUser = resultSet.getString("minecraftUser");
+        profile.minecraftName = resultSet.getString("minecraftName");
+        long discordId = resultSet.getLong("discordId");
+        profile.discordId = resultSet.wasNull() ? null : Long.toString(discordId);
+        // NULL preference columns read as 0, i.e. disabled
+        profile.onlineDiscordDMs = resultSet.getInt("onlineDiscordDMs") == 1;
+        profile.offlineDiscordDMs = resultSet.getInt("offlineDiscordDMs") == 1;
+        profile.deathAlertDelay = resultSet.getDouble("deathAlertDelay");
+        profile.msgReplyUser = resultSet.getString("msgReplyUser");
+        return profile;
+    }
+
+    // Returns the linked Discord ID, or null if the account isn't linked yet
+    String getLinkedDiscordId() {
+        return discordId;
+    }
+}
@@ -0,0 +1,95 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// Holds the AccountProfiles for online players, as well as any offline accounts that were looked up recently.
+// Online players' profiles are pinned until they disconnect, while other profiles are dropped once they've been idle
+// for too long.
+class AccountProfileCache {
+    private final Map<UUID, Entry> profiles = new ConcurrentHashMap<>();
+    private final Map<String, UUID> discordAccounts = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final AccountProfile profile;
+        volatile boolean pinned;
+        volatile long lastAccess;
+
+        Entry(AccountProfile profile, boolean pinned) {
+            this.profile = profile;
+            this.pinned = pinned;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    AccountProfile get(UUID account) {
+        Entry entry = profiles.get(account);
+        if (entry == null) return null;
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.profile;
+    }
+
+    AccountProfile getByDiscordId(String discordId) {
+        UUID account = discordAccounts.get(discordId);
+        if (account == null) return null;
+        return get(account);
+    }
+
+    // Adds a profile to the cache, replacing any existing profile for that account.
+    // Returns the profile that ended up in the cache.
+    AccountProfile put(AccountProfile profile, boolean pinned) {
+        Entry entry = new Entry(profile, pinned);
+        Entry previous = profiles.put(profile.account, entry);
+        if (previous != null) {
+            // Keep it pinned if the player was already online
+            if (previous.pinned) entry.pinned = true;
+            removeDiscordIndex(previous.profile);
+        }
+        updateDiscordIndex(profile, null);
+        return profile;
+    }
+
+    // Same as put(), but keeps the existing profile if one was added in the meantime
+    AccountProfile putIfAbsent(AccountProfile profile) {
+        Entry existing = profiles.putIfAbsent(profile.account, new Entry(profile, false));
+        if (existing != null) return existing.profile;
+        updateDiscordIndex(profile, null);
+        return profile;
+    }
+
+    // Must be called whenever a cached profile's Discord ID changes so lookups by Discord ID stay accurate
+    void updateDiscordIndex(AccountProfile profile, String oldDiscordId) {
+        if (oldDiscordId != null) discordAccounts.remove(oldDiscordId, profile.account);
+        String discordId = profile.getLinkedDiscordId();
+        if (discordId != null) discordAccounts.put(discordId, profile.account);
+    }
+
+    private void removeDiscordIndex(AccountProfile profile) {
+        String discordId = profile.getLinkedDiscordId();
+        if (discordId != null) discordAccounts.remove(discordId, profile.account);
+    }
+
+    // Lets the profile be evicted once it's idle, rather than keeping it until it's removed
+    void unpin(UUID account) {
+        Entry entry = profiles.get(account);
+        if (entry != null) entry.pinned = false;
+    }
+
+    void remove(UUID account) {
+        Entry entry = profiles.remove(account);
+        if (entry != null) removeDiscordIndex(entry.profile);
+    }
+
+    // Drops any unpinned profiles that haven't been accessed within the given time, except those the given check says
+    // to keep (such as profiles with updates that haven't been written to the database yet)
+    void evictIdle(long maxIdleMillis, Predicate<UUID> keep) {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        profiles.forEach((account, entry) -> {
+            if (!entry.pinned && entry.lastAccess < cutoff && !keep.test(account) && profiles.remove(account, entry)) {
+                removeDiscordIndex(entry.profile);
+            }
+        });
+    }
+}
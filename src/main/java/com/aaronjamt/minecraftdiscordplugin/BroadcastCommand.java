@@ -25,7 +25,7 @@ public class BroadcastCommand implements SimpleCommand {
 
         // Get the message to broadcast
         String message = String.join(" ", invocation.arguments());
-        plugin.sendMessageToAll(config.broadcastMessageFormat.replace("{message}", message));
+        plugin.sendMessageToAll(config.broadcastMessageFormat.render(message));
     }
 
     @Override
@@ -0,0 +1,287 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+// Relays in-game chat to the other players and to Discord, off of Velocity's event threads.
+// Each message goes through four stages:
+//  - capture: the chat event handler records the message and returns immediately
+//  - enrich: converts @mentions
+//  - render: sends the message to everyone in-game, and builds the Discord message
+//  - deliver: sends the message to Discord, optionally batching messages that arrive close together into one
+// Each stage after capture has its own bounded queue and worker thread. Since in-game delivery happens in the render
+// stage, a slow Discord connection only backs up the deliver queue and never delays in-game chat (unless the
+// overflow policy is BLOCK, which deliberately applies backpressure all the way to the chat event).
+class ChatRelayPipeline {
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 2000;
+    // Discord's limit for an embed description
+    private static final int MAX_DISCORD_MESSAGE_LENGTH = 4096;
+    // Discord's limits for the embeds in one message: how many there are, and their total text length
+    private static final int MAX_DISCORD_EMBEDS = 10;
+    private static final int MAX_DISCORD_EMBEDS_LENGTH = 6000;
+
+    // What to do with a new message when a stage's queue is full
+    enum OverflowPolicy {
+        // Wait for space in the queue
+        BLOCK,
+        // Drop the oldest queued message to make room
+        DROP_OLDEST,
+        // Merge the new message into the newest queued one if possible (consecutive Discord messages from the same
+        // player), otherwise drop the oldest queued message. Only the deliver stage has anything to merge, so the
+        // stages before it wait for space instead, rather than dropping in-game chat.
+        COALESCE
+    }
+
+    record CapturedChat(PlayerSession session, String serverName, String message) {
+    }
+
+    private record EnrichedChat(CapturedChat chat, String discordName, String discordIcon, String discordMessage) {
+    }
+
+    record DiscordChat(String discordName, String discordIcon, String username, String minecraftIcon, String message) {
+    }
+
+    private final MinecraftDiscordPlugin plugin;
+    private final DiscordBot discordBot;
+    private final Logger logger;
+
+    private final Stage<EnrichedChat> render;
+    private final Stage<DiscordChat> deliver;
+    private final Stage<CapturedChat> enrich;
+
+    // How long to wait for more messages to batch with the first one, or 0 to send each message on its own
+    private final long batchWindowNanos;
+    private final int batchMaxEmbeds;
+
+    ChatRelayPipeline(MinecraftDiscordPlugin plugin, DiscordBot discordBot, Logger logger, Config config) {
+        this.plugin = plugin;
+        this.discordBot = discordBot;
+        this.logger = logger;
+
+        batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.chatBatchWindowMillis));
+        batchMaxEmbeds = Math.max(1, Math.min(MAX_DISCORD_EMBEDS, config.chatBatchMaxEmbeds));
+
+        int queueSize = Math.max(1, config.chatRelayQueueSize);
+        OverflowPolicy policy = config.chatRelayOverflowPolicy;
+        // Under COALESCE, the deliver stage never waits, so the stages before it only fill up if the proxy can't keep
+        // up at all. Waiting there keeps in-game chat from being dropped.
+        OverflowPolicy preRenderPolicy = policy == OverflowPolicy.COALESCE ? OverflowPolicy.BLOCK : policy;
+        // Create the stages back to front, so each one's next stage already exists
+        deliver = new Stage<>("Deliver", queueSize, policy, this::deliver, ChatRelayPipeline::mergeDiscordChats);
+        render = new Stage<>("Render", queueSize, preRenderPolicy, this::render, null);
+        enrich = new Stage<>("Enrich", queueSize, preRenderPolicy, this::enrich, null);
+    }
+
+    // Called from the chat event. Only blocks if the pipeline is backed up and the overflow policy is BLOCK or COALESCE
+    // (which both wait for space in the enrich and render stages).
+    void capture(CapturedChat chat) {
+        enrich.offer(chat);
+    }
+
+    private void enrich(CapturedChat chat) {
+        // Get linked Discord username and icon
+        String discordName = chat.session().discordName;
+        String discordIcon = chat.session().discordAvatarUrl;
+
+        // Replace @mentions with <@123456789012345678> mentions
+        // TODO: This should probably have a config option and/or be configurable per-user and/or per-Discord-account
+        String discordMessage = discordBot.replaceMentions(chat.message());
+
+        render.offer(new EnrichedChat(chat, discordName, discordIcon, discordMessage));
+    }
+
+    private void render(EnrichedChat enriched) {
+        CapturedChat chat = enriched.chat();
+        PlayerSession session = chat.session();
+        String playerUuid = session.account.toString();
+
+        // Send message to all Minecraft clients, but not the backend server(s)
+        plugin.sendChatMessage(new ChatMessage(playerUuid, chat.message(), chat.serverName(), false));
+
+        deliver.offer(new DiscordChat(enriched.discordName(), enriched.discordIcon(), session.username, session.chatHeadUrl, enriched.discordMessage()));
+    }
+
+    private void deliver(DiscordChat chat) {
+        if (batchWindowNanos == 0) {
+            discordBot.chatWebhookSendMessage(DiscordSendScheduler.Priority.CHAT, chat.discordName(), chat.discordIcon(), chat.username(), chat.minecraftIcon(), null, null, null, chat.message(), null, null);
+            return;
+        }
+
+        // Each batch returns the first message that didn't fit in it, which starts the next batch
+        DiscordChat next = chat;
+        while (next != null) {
+            next = deliverBatch(next);
+        }
+    }
+
+    // Collects messages that arrive within the batch window after the first one, and sends them as one Discord message
+    // with an embed for each run of messages from the same player. Returns the message that ended the batch by not
+    // fitting in it, if any.
+    private DiscordChat deliverBatch(DiscordChat first) {
+        List<DiscordChat> batch = new ArrayList<>();
+        batch.add(first);
+        int length = embedLength(first);
+        DiscordChat leftover = null;
+
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (true) {
+            DiscordChat chat = deliver.poll(deadline - System.nanoTime());
+            if (chat == null) break;
+
+            DiscordChat merged = mergeDiscordChats(batch.get(batch.size() - 1), chat);
+            int mergedLength = merged == null ? 0 : length - embedLength(batch.get(batch.size() - 1)) + embedLength(merged);
+            if (merged != null && mergedLength <= MAX_DISCORD_EMBEDS_LENGTH) {
+                batch.set(batch.size() - 1, merged);
+                length = mergedLength;
+            } else if (batch.size() < batchMaxEmbeds && length + embedLength(chat) <= MAX_DISCORD_EMBEDS_LENGTH) {
+                batch.add(chat);
+                length += embedLength(chat);
+            } else {
+                leftover = chat;
+                break;
+            }
+        }
+
+        discordBot.chatWebhookSendBatch(batch);
+        return leftover;
+    }
+
+    // The number of characters an embed for this message counts towards Discord's limit
+    private static int embedLength(DiscordChat chat) {
+        return chat.message().length() + (chat.username() == null ? 0 : chat.username().length());
+    }
+
+    // Combines consecutive messages from the same player into one Discord message, if it'll fit
+    private static DiscordChat mergeDiscordChats(DiscordChat older, DiscordChat newer) {
+        if (!Objects.equals(older.username(), newer.username()) || !Objects.equals(older.discordName(), newer.discordName())) return null;
+        if (older.message().length() + 1 + newer.message().length() > MAX_DISCORD_MESSAGE_LENGTH) return null;
+        return new DiscordChat(older.discordName(), older.discordIcon(), older.username(), older.minecraftIcon(), older.message() + "\n" + newer.message());
+    }
+
+    // Stops accepting messages and gives each stage a moment to finish what's already queued, in order
+    void shutdown() {
+        for (Stage<?> stage : List.of(enrich, render, deliver)) {
+            stage.shutdown();
+        }
+    }
+
+    private class Stage<T> {
+        private final String name;
+        private final int capacity;
+        private final LinkedBlockingDeque<T> queue;
+        private final OverflowPolicy policy;
+        private final Consumer<T> handler;
+        // Returns the merged item, or null if the two can't be merged. May itself be null if nothing can be merged.
+        private final BinaryOperator<T> merger;
+        private final Thread worker;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean running = true;
+
+        Stage(String name, int capacity, OverflowPolicy policy, Consumer<T> handler, BinaryOperator<T> merger) {
+            this.name = name;
+            this.capacity = capacity;
+            this.queue = new LinkedBlockingDeque<>(capacity);
+            this.policy = policy;
+            this.handler = handler;
+            this.merger = merger;
+            logger.info("Chat relay {} stage: queue capacity {}, overflow policy {}.", name, capacity, policy);
+
+            worker = new Thread(this::run, "MinecraftDiscordPlugin Chat Relay " + name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        // Takes the next item if one arrives within the timeout, for handlers that want to process several at once
+        T poll(long timeoutNanos) {
+            try {
+                return queue.pollFirst(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        void offer(T item) {
+            if (!running) return;
+            if (policy == OverflowPolicy.BLOCK) {
+                try {
+                    queue.putLast(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+
+            // Producers are serialized so that making room and adding the item happen together
+            synchronized (this) {
+                if (queue.offerLast(item)) return;
+
+                if (policy == OverflowPolicy.COALESCE && merger != null) {
+                    T newest = queue.pollLast();
+                    if (newest != null) {
+                        T merged = merger.apply(newest, item);
+                        if (merged != null) {
+                            queue.offerLast(merged);
+                            return;
+                        }
+                        queue.offerLast(newest);
+                    }
+                }
+
+                // Drop the oldest message to make room. The worker may have made room in the meantime, in which case
+                // nothing needs to be dropped.
+                while (!queue.offerLast(item)) {
+                    if (queue.pollFirst() != null) recordDrop();
+                }
+            }
+        }
+
+        private void recordDrop() {
+            long count = dropped.incrementAndGet();
+            // Don't flood the console if we're dropping a lot of messages
+            if (count == 1 || count % 100 == 0) {
+                logger.warn("Chat relay {} queue is full (capacity {}), dropped {} message(s) so far.", name, capacity, count);
+            }
+        }
+
+        private void run() {
+            while (running || !queue.isEmpty()) {
+                T item;
+                try {
+                    item = queue.pollFirst(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (item == null) continue;
+
+                try {
+                    handler.accept(item);
+                } catch (Exception e) {
+                    logger.error("Error in chat relay {} stage: {}\n\tException: {}", name, e, Arrays.toString(e.getStackTrace()));
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            try {
+                worker.join(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.isAlive()) {
+                logger.warn("Chat relay {} stage didn't finish in time, {} message(s) not relayed.", name, queue.size());
+                worker.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+// Prepares player-written chat text for insertion into a MiniMessage template.
+// In a single pass over the message, escapes the characters that would let players use MiniMessage tags (or escape
+// sequences) and wraps URLs in clickable, underlined links.
+final class ChatSanitizer {
+    private ChatSanitizer() {
+    }
+
+    static String sanitize(String message) {
+        int length = message.length();
+        StringBuilder builder = new StringBuilder(length + 16);
+        int i = 0;
+        while (i < length) {
+            char c = message.charAt(i);
+
+            // Replace URLs with clickable links
+            if (c == 'h') {
+                int urlEnd = findUrlEnd(message, i);
+                if (urlEnd >= 0) {
+                    builder.append("<u><click:open_url:'").append(message, i, urlEnd).append("'>")
+                            .append(message, i, urlEnd)
+                            .append("</click></u>");
+                    i = urlEnd;
+                    continue;
+                }
+            }
+
+            // Prevent player from using color codes or escape sequences
+            if (c == '\\' || c == '<') builder.append('\\');
+            builder.append(c);
+            i++;
+        }
+        return builder.toString();
+    }
+
+    // If there's a URL starting at the given index, returns the index just after it. Otherwise, returns -1.
+    // Matches the URLs that the regex from https://stackoverflow.com/a/3809435 does: "http://" or "https://", then a
+    // host containing at least one dot, then any path, query or fragment characters. None of the characters allowed in
+    // a URL need escaping.
+    private static int findUrlEnd(String message, int start) {
+        int hostStart;
+        if (message.startsWith("https://", start)) {
+            hostStart = start + "https://".length();
+        } else if (message.startsWith("http://", start)) {
+            hostStart = start + "http://".length();
+        } else {
+            return -1;
+        }
+
+        int length = message.length();
+        int end = hostStart;
+        boolean inHost = true;
+        boolean hasDomain = false;
+        while (end < length) {
+            char c = message.charAt(end);
+            if (!isUrlChar(c)) break;
+            if (inHost) {
+                if (!isHostChar(c)) {
+                    inHost = false;
+                } else if (c == '.' && end > hostStart && end + 1 < length && isAlphanumeric(message.charAt(end + 1))) {
+                    hasDomain = true;
+                }
+            }
+            end++;
+        }
+        return hasDomain ? end : -1;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isHostChar(char c) {
+        return isAlphanumeric(c) || "-@:%._+~#=".indexOf(c) >= 0;
+    }
+
+    private static boolean isUrlChar(char c) {
+        return isAlphanumeric(c) || "-()@:%_+.~#?&/=".indexOf(c) >= 0;
+    }
+}
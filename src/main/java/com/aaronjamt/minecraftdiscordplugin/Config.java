@@ -1,14 +1,18 @@
 package com.aaronjamt.minecraftdiscordplugin;
 
+import org.slf4j.Logger;
 import org.tomlj.Toml;
 import org.tomlj.TomlParseResult;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Config {
+    private final Logger logger;
     public Path dataDirectoryPath;
     public String discordBotToken;
     public String discordBotGuild;
@@ -17,30 +21,43 @@ public class Config {
     public String discordAccountLinkedRole;
     public String minecraftHeadURL;
     public String sqliteDatabasePath;
-    public String minecraftMessageTemplate;
-    public String minecraftMessageReactionTemplate;
-    public String discordMessageTemplate;
-    public String discordMessageEditTemplate;
-    public String discordMessageReactionTemplate;
+    public int databaseReadConnections;
+    public long databaseWriteFlushIntervalMillis;
+    public int databaseWriteBatchSize;
+    public long linkCodeExpiryMinutes;
+    public int discordWebhookPoolSize;
+    public int chatRelayQueueSize;
+    public ChatRelayPipeline.OverflowPolicy chatRelayOverflowPolicy;
+    public long chatBatchWindowMillis;
+    public int chatBatchMaxEmbeds;
+    public long discordDMRetentionDays;
+    public int discordDMPruneBatchSize;
+    // Message templates are followed by their placeholders, in the order their render() methods take them
+    public MessageTemplate minecraftMessageTemplate; // server, minecraftUsername, discordUsername, message
+    public MessageTemplate minecraftMessageReactionTemplate; // from, to, reaction
+    public MessageTemplate discordMessageTemplate; // minecraftUsername, discordUsername, message
+    public MessageTemplate discordMessageEditTemplate; // minecraftUsername, discordUsername, message
+    public MessageTemplate discordMessageReactionTemplate; // from, to, reaction
     public String noMinecraftAccountPlaceholder;
-    public String minecraftPlayerJoinMessage;
-    public String minecraftPlayerJoinUnlinkedMessage;
-    public String minecraftPlayerSwitchServersMessage;
-    public String minecraftNewPlayerMessage;
-    public String minecraftPlayerLeaveMessage;
-    public String playerNeedsToLinkMessage;
+    public MessageTemplate minecraftPlayerJoinMessage; // username
+    public MessageTemplate minecraftPlayerJoinUnlinkedMessage; // username
+    public MessageTemplate minecraftPlayerSwitchServersMessage; // username, new_server, old_server
+    public MessageTemplate minecraftNewPlayerMessage; // username
+    public MessageTemplate minecraftPlayerLeaveMessage; // username
+    public MessageTemplate playerNeedsToLinkMessage; // code
     public String serverStoppedMessage;
     public String serverStartedMessage;
-    public String minecraftPrivateMessageFormat;
+    public MessageTemplate minecraftPrivateMessageFormat; // sender, recipient, message
     public String discordPrivateMessageFormat;
-    public String discordAccountAlreadyLinkedMessage;
-    public String discordAccountLinkedSuccessfullyMessage;
-    public String invalidLinkCodeMessage;
+    public MessageTemplate discordAccountAlreadyLinkedMessage; // username
+    public MessageTemplate discordAccountLinkedSuccessfullyMessage; // username
+    public MessageTemplate invalidLinkCodeMessage; // code
     public String discordUserLeftServerMessage;
-    public String broadcastMessageFormat;
+    public MessageTemplate broadcastMessageFormat; // message
 
-    Config(Path dataDirectoryPath) {
+    Config(Path dataDirectoryPath, Logger logger) {
         this.dataDirectoryPath = dataDirectoryPath;
+        this.logger = logger;
         // Call reload() to load the data from disk
         reload();
     }
@@ -59,33 +76,64 @@ public class Config {
             discordBotChannel = parse.getString(List.of("discord", "channelID"));
             accountLinkingChannel = parse.getString(List.of("discord", "accountLinkingChannelID"));
             discordAccountLinkedRole = parse.getString(List.of("discord", "accountLinkedRole"));
+            linkCodeExpiryMinutes = parse.getLong(List.of("discord", "linkCodeExpiryMinutes"), () -> 30);
+            discordWebhookPoolSize = (int) parse.getLong(List.of("discord", "webhookPoolSize"), () -> 4);
+            // Parse chat relay settings
+            chatRelayQueueSize = (int) parse.getLong(List.of("chat", "relayQueueSize"), () -> 256);
+            String overflowPolicy = parse.getString(List.of("chat", "relayOverflowPolicy"), () -> "COALESCE");
+            try {
+                chatRelayOverflowPolicy = ChatRelayPipeline.OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown chat.relayOverflowPolicy '{}', using COALESCE. Supported policies: {}", overflowPolicy, Arrays.toString(ChatRelayPipeline.OverflowPolicy.values()));
+                chatRelayOverflowPolicy = ChatRelayPipeline.OverflowPolicy.COALESCE;
+            }
+            // Batching is off (0) unless a window is set
+            chatBatchWindowMillis = parse.getLong(List.of("chat", "batchWindowMillis"), () -> 0);
+            chatBatchMaxEmbeds = (int) parse.getLong(List.of("chat", "batchMaxEmbeds"), () -> 10);
             // Parse database settings
             sqliteDatabasePath = parse.getString(List.of("database", "filename"));
+            databaseReadConnections = (int) parse.getLong(List.of("database", "readConnections"), () -> 4);
+            databaseWriteFlushIntervalMillis = parse.getLong(List.of("database", "writeFlushIntervalMillis"), () -> 500);
+            databaseWriteBatchSize = (int) parse.getLong(List.of("database", "writeBatchSize"), () -> 100);
+            // Set the retention to 0 to keep Discord DM records forever
+            discordDMRetentionDays = parse.getLong(List.of("database", "discordDMRetentionDays"), () -> 30);
+            discordDMPruneBatchSize = (int) parse.getLong(List.of("database", "discordDMPruneBatchSize"), () -> 500);
             // Parse messages
             // TODO: Clean up names and order
-            minecraftMessageTemplate = parse.getString(List.of("messages", "minecraftMessageTemplate"));
-            minecraftMessageReactionTemplate = parse.getString(List.of("messages", "minecraftMessageReactionTemplate"));
-            discordMessageTemplate = parse.getString(List.of("messages", "discordMessageTemplate"));
-            discordMessageEditTemplate = parse.getString(List.of("messages", "discordMessageEditTemplate"));
-            discordMessageReactionTemplate = parse.getString(List.of("messages", "discordMessageReactionTemplate"));
+            minecraftMessageTemplate = parseTemplate(parse, "minecraftMessageTemplate", "server", "minecraftUsername", "discordUsername", "message");
+            minecraftMessageReactionTemplate = parseTemplate(parse, "minecraftMessageReactionTemplate", "from", "to", "reaction");
+            discordMessageTemplate = parseTemplate(parse, "discordMessageTemplate", "minecraftUsername", "discordUsername", "message");
+            discordMessageEditTemplate = parseTemplate(parse, "discordMessageEditTemplate", "minecraftUsername", "discordUsername", "message");
+            discordMessageReactionTemplate = parseTemplate(parse, "discordMessageReactionTemplate", "from", "to", "reaction");
             noMinecraftAccountPlaceholder = parse.getString(List.of("messages", "noMinecraftAccountPlaceholder"));
-            minecraftPlayerJoinMessage = parse.getString(List.of("messages", "minecraftPlayerJoinMessage"));
-            minecraftPlayerJoinUnlinkedMessage = parse.getString(List.of("messages", "minecraftPlayerJoinUnlinkedMessage"));
-            minecraftPlayerSwitchServersMessage = parse.getString(List.of("messages", "minecraftPlayerSwitchServersMessage"));
-            minecraftNewPlayerMessage = parse.getString(List.of("messages", "minecraftNewPlayerMessage"));
-            minecraftPlayerLeaveMessage = parse.getString(List.of("messages", "minecraftPlayerLeaveMessage"));
-            playerNeedsToLinkMessage = parse.getString(List.of("messages", "playerNeedsToLinkMessage"));
+            minecraftPlayerJoinMessage = parseTemplate(parse, "minecraftPlayerJoinMessage", "username");
+            minecraftPlayerJoinUnlinkedMessage = parseTemplate(parse, "minecraftPlayerJoinUnlinkedMessage", "username");
+            minecraftPlayerSwitchServersMessage = parseTemplate(parse, "minecraftPlayerSwitchServersMessage", "username", "new_server", "old_server");
+            minecraftNewPlayerMessage = parseTemplate(parse, "minecraftNewPlayerMessage", "username");
+            minecraftPlayerLeaveMessage = parseTemplate(parse, "minecraftPlayerLeaveMessage", "username");
+            playerNeedsToLinkMessage = parseTemplate(parse, "playerNeedsToLinkMessage", "code");
             serverStoppedMessage = parse.getString(List.of("messages", "serverStoppedMessage"));
             serverStartedMessage = parse.getString(List.of("messages", "serverStartedMessage"));
-            minecraftPrivateMessageFormat = parse.getString(List.of("messages", "minecraftPrivateMessageFormat"));
+            minecraftPrivateMessageFormat = parseTemplate(parse, "minecraftPrivateMessageFormat", "sender", "recipient", "message");
             discordPrivateMessageFormat = parse.getString(List.of("messages", "discordPrivateMessageFormat"));
-            discordAccountAlreadyLinkedMessage = parse.getString(List.of("messages", "discordAccountAlreadyLinkedMessage"));
-            discordAccountLinkedSuccessfullyMessage = parse.getString(List.of("messages", "discordAccountLinkedSuccessfullyMessage"));
-            invalidLinkCodeMessage = parse.getString(List.of("messages", "invalidLinkCodeMessage"));
+            discordAccountAlreadyLinkedMessage = parseTemplate(parse, "discordAccountAlreadyLinkedMessage", "username");
+            discordAccountLinkedSuccessfullyMessage = parseTemplate(parse, "discordAccountLinkedSuccessfullyMessage", "username");
+            invalidLinkCodeMessage = parseTemplate(parse, "invalidLinkCodeMessage", "code");
             discordUserLeftServerMessage = parse.getString(List.of("messages", "discordUserLeftServerMessage"));
-            broadcastMessageFormat = parse.getString(List.of("messages", "broadcastMessageFormat"));
+            broadcastMessageFormat = parseTemplate(parse, "broadcastMessageFormat", "message");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    // Compiles a message template, where the placeholders are the values its render() method takes, in order.
+    // Logs a warning for any other placeholders in it, since they would never be filled in.
+    private MessageTemplate parseTemplate(TomlParseResult parse, String name, String... placeholders) {
+        List<String> unknownPlaceholders = new ArrayList<>();
+        MessageTemplate template = MessageTemplate.compile(parse.getString(List.of("messages", name)), List.of(placeholders), unknownPlaceholders);
+        if (!unknownPlaceholders.isEmpty()) {
+            logger.warn("Unknown placeholder(s) {} in messages.{} will be shown as-is. Supported placeholders: {}", unknownPlaceholders, name, Arrays.toString(placeholders));
+        }
+        return template;
+    }
 }
@@ -0,0 +1,43 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// A database connection along with its cache of prepared statements.
+// Each connection is only ever used by one thread at a time (either checked out of the read pool, or while holding the
+// writer lock), so the statements can be reused without any extra synchronization.
+class DatabaseConnection implements AutoCloseable {
+    private final Connection connection;
+    private final Map<Object, PreparedStatement> statements = new HashMap<>();
+
+    DatabaseConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    // Returns the cached statement for the given key, preparing it with the given SQL the first time it's needed
+    PreparedStatement prepare(Object key, Supplier<String> sql) throws SQLException {
+        PreparedStatement preparedStatement = statements.get(key);
+        if (preparedStatement == null) {
+            preparedStatement = connection.prepareStatement(sql.get());
+            statements.put(key, preparedStatement);
+        }
+        return preparedStatement;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (PreparedStatement preparedStatement : statements.values()) {
+            preparedStatement.close();
+        }
+        statements.clear();
+        connection.close();
+    }
+}
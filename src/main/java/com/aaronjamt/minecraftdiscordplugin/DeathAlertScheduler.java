@@ -0,0 +1,111 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Sends players a Discord DM if they haven't respawned a while after dying.
+// Each pending alert is its own delayed task, so nothing has to scan the pending alerts, and each player has one
+// handle that a respawn or disconnect cancels directly. Pending alerts are also stored in the database, so if the
+// player (or the whole proxy) disconnects before respawning, the alert picks back up when they log in again.
+class DeathAlertScheduler {
+    // Forget about alerts from deaths longer ago than this, since the player's stuff is long gone by then
+    private static final long MAX_ALERT_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    record DeathAlert(UUID account, long diedAt, long alertAt) {
+    }
+
+    private record PendingAlert(DeathAlert alert, ScheduledFuture<?> task) {
+    }
+
+    private final Logger logger;
+    private final SQLiteDatabaseConnector database;
+    private final DiscordBot discordBot;
+    private final Map<UUID, PendingAlert> pending = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "MinecraftDiscordPlugin Death Alerts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    DeathAlertScheduler(Logger logger, SQLiteDatabaseConnector database, DiscordBot discordBot) {
+        this.logger = logger;
+        this.database = database;
+        this.discordBot = discordBot;
+
+        // Take cancelled alerts out of the queue straight away, rather than leaving them there until they'd have run
+        executor.setRemoveOnCancelPolicy(true);
+
+        database.pruneDeathAlertsAsync(System.currentTimeMillis() - MAX_ALERT_AGE_MILLIS);
+    }
+
+    // Called when a player dies, replacing any alert they already had
+    void schedule(UUID account, long diedAt, long alertAt) {
+        DeathAlert alert = new DeathAlert(account, diedAt, alertAt);
+        database.saveDeathAlertAsync(alert);
+        arm(alert);
+    }
+
+    // Called when a player respawns, so they won't be alerted
+    void cancel(UUID account) {
+        PendingAlert removed = pending.remove(account);
+        if (removed != null) removed.task().cancel(false);
+        database.deleteDeathAlertAsync(account);
+    }
+
+    // Called when a player disconnects. They won't be alerted while they're offline, but the alert is kept in case
+    // they come back before respawning.
+    void suspend(UUID account) {
+        PendingAlert removed = pending.remove(account);
+        if (removed != null) removed.task().cancel(false);
+    }
+
+    // Called when a player logs in, to pick up any alert left over from before they disconnected
+    void resume(UUID account) {
+        database.getDeathAlertAsync(account).thenAccept(alert -> {
+            if (alert == null) return;
+            if (alert.diedAt() < System.currentTimeMillis() - MAX_ALERT_AGE_MILLIS) {
+                database.deleteDeathAlertAsync(account);
+                return;
+            }
+            // If it was due while they were offline, send it now
+            arm(alert);
+        });
+    }
+
+    private void arm(DeathAlert alert) {
+        long delayMillis = Math.max(0, alert.alertAt() - System.currentTimeMillis());
+        // Scheduled inside compute(), so that if the alert is already due, send() can't see the map before it's added
+        pending.compute(alert.account(), (account, previous) -> {
+            if (previous != null) previous.task().cancel(false);
+            ScheduledFuture<?> task = executor.schedule(() -> send(alert), delayMillis, TimeUnit.MILLISECONDS);
+            return new PendingAlert(alert, task);
+        });
+    }
+
+    private void send(DeathAlert alert) {
+        // Only send it if it hasn't been replaced by a newer alert (or cancelled) in the meantime. remove() only takes it
+        // out if it's still the same entry, so a replacement arriving now can't be removed by mistake.
+        PendingAlert current = pending.get(alert.account());
+        if (current == null || current.alert() != alert || !pending.remove(alert.account(), current)) return;
+
+        database.deleteDeathAlertAsync(alert.account());
+        database.getDiscordIDForAsync(alert.account()).thenAccept(discordID -> {
+            if (discordID == null) {
+                logger.warn("Not sending death alert to player {}: no linked Discord account.", alert.account());
+                return;
+            }
+            discordBot.sendDeathAlert(discordID, alert.diedAt());
+        });
+    }
+
+    // Stops the timer. Alerts that haven't been sent yet are still in the database for next time.
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
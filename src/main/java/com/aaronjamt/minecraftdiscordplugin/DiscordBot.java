@@ -1,12 +1,13 @@
 package com.aaronjamt.minecraftdiscordplugin;
 
-import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
 import club.minnced.discord.webhook.send.WebhookEmbed;
 import club.minnced.discord.webhook.send.WebhookEmbedBuilder;
 import club.minnced.discord.webhook.send.WebhookMessage;
 import club.minnced.discord.webhook.send.WebhookMessageBuilder;
 import com.velocitypowered.api.proxy.Player;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.JDA;
@@ -15,12 +16,16 @@ import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
 import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberUpdateEvent;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.component.ButtonInteractionEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.MessageUpdateEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
 import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateAvatarEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateGlobalNameEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateNameEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.interactions.components.ActionRow;
 import net.dv8tion.jda.api.interactions.components.buttons.Button;
@@ -29,6 +34,7 @@ import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
 import net.dv8tion.jda.api.interactions.modals.Modal;
 import net.dv8tion.jda.api.interactions.modals.ModalMapping;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
 import net.dv8tion.jda.api.utils.TimeFormat;
 import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import net.kyori.adventure.text.Component;
@@ -37,12 +43,12 @@ import org.slf4j.Logger;
 
 import javax.annotation.Nonnull;
 import java.awt.*;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 public class DiscordBot extends ListenerAdapter {
@@ -55,8 +61,22 @@ public class DiscordBot extends ListenerAdapter {
     private TextChannel accountLinkingChannel;
     private Guild guild;
 
-    // Use a different webhook for each player so they show up as different users in Discord notifications
-    private final HashMap<String, Webhook> webhooks = new HashMap<>();
+    // A fixed set of webhooks shared by all players. Each message overrides the webhook's name and avatar, so players
+    // still show up as different users in Discord notifications.
+    private WebhookPool webhookPool;
+    // Webhook pool key for batched chat messages
+    private static final String CHAT_BATCH_WEBHOOK_KEY = "Chat Relay Batch";
+    // Long-lived clients for sending through those webhooks
+    private final WebhookClientRegistry webhookClients;
+    // Platform icons for announcement footers, and their URLs once uploaded
+    private final PlatformIcons platformIcons;
+    // Orders and rate limits everything we send to Discord
+    private final DiscordSendScheduler sendScheduler;
+
+    // Guild members by name, for converting @mentions from Minecraft
+    private final MentionIndex mentionIndex = new MentionIndex();
+    // Reloads the full member list once the bot is ready
+    private GuildMemberResync memberResync;
 
     private Consumer<ChatMessage> chatMessageCallback;
     private Consumer<String> serverMessageCallback;
@@ -70,6 +90,9 @@ public class DiscordBot extends ListenerAdapter {
         jda = JDABuilder.create(config.discordBotToken, GatewayIntent.DIRECT_MESSAGES, GatewayIntent.MESSAGE_CONTENT, GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MEMBERS, GatewayIntent.GUILD_PRESENCES)
                 .addEventListeners(this)
                 .disableCache(CacheFlag.VOICE_STATE, CacheFlag.EMOJI, CacheFlag.STICKER, CacheFlag.SCHEDULED_EVENTS)
+                // Keep every member cached, adding and removing them as they join and leave, so that membership and
+                // role checks don't need to fetch them
+                .setMemberCachePolicy(MemberCachePolicy.ALL)
                 .setActivity(Activity.playing("Minecraft"))
                 .setEnableShutdownHook(false)
                 .build();
@@ -80,6 +103,15 @@ public class DiscordBot extends ListenerAdapter {
                 logger.info("Logged in with ping: {}", ping)
         );
 
+        platformIcons = new PlatformIcons(logger);
+        sendScheduler = new DiscordSendScheduler(logger);
+        webhookClients = new WebhookClientRegistry(logger, jda.getHttpClient(), (webhookId, headers) -> {
+            // Feed the rate limit headers for our webhooks back into their send routes
+            WebhookPool pool = webhookPool;
+            String route = pool == null ? null : pool.routeForWebhook(webhookId);
+            if (route != null) sendScheduler.updateRateLimit(route, headers);
+        });
+
         try {
             jda.awaitReady();
         } catch (InterruptedException e) {
@@ -89,48 +121,47 @@ public class DiscordBot extends ListenerAdapter {
 
     public void startup() {
         // Send the announcement that we're online
-        chatChannel.sendMessageEmbeds(new EmbedBuilder().setTitle(config.serverStartedMessage).build()).queue();
+        sendScheduler.submit(DiscordSendScheduler.Priority.ANNOUNCEMENT, "channel:" + chatChannel.getId(), () ->
+                chatChannel.sendMessageEmbeds(new EmbedBuilder().setTitle(config.serverStartedMessage).build()).submit()
+        );
     }
 
     public void shutdown() {
+        if (memberResync != null) memberResync.shutdown();
+        sendScheduler.close();
+        webhookClients.close();
         jda.shutdown();
     }
 
     public String replaceMentions(String message) {
-        // TODO: Is there a better way to do this?
-        // Start at the beginning
-        int index = 0;
-        while (true) {
-            // Find the next @mention, if one exists
-            index = message.indexOf("@", index) + 1;
-            if (index == 0) break; // No more @mentions, we're done
-            int endIndex = message.indexOf(" ", index);
+        // Find the first @mention, if one exists
+        int index = message.indexOf('@');
+        if (index == -1) return message;
+
+        // Copy the message into the builder from left to right, converting @mentions as we go
+        StringBuilder builder = new StringBuilder(message.length() + 32);
+        int copiedUpTo = 0;
+        while (index != -1) {
+            // The mention runs from after the @ up to the next space
+            int endIndex = message.indexOf(' ', index + 1);
             if (endIndex == -1) endIndex = message.length();
-            String mention = message.substring(index, endIndex);
-
-            // Find a Discord user with that username
-            boolean foundMention = false;
-            for (User user : jda.getUsers()) {
-                // If we find a user with that username, replace with the <@ID> format and end the loop early
-                if (user.getEffectiveName().equalsIgnoreCase(mention) || user.getName().equalsIgnoreCase(mention)) {
-                    //logger.info("Name mentioned is a match!");
-                    mention = String.format("<@%s>", user.getId());
-                    foundMention = true;
-                    break;
-                }
-            }
-            // If we didn't find a mention, add the @ we removed before back to it
-            if (!foundMention) mention = "@" + mention;
 
-            message = message.substring(0, index - 1) + mention + message.substring(endIndex);
+            // Find a Discord user with that username or display name
+            String userId = mentionIndex.find(message.substring(index + 1, endIndex));
+            if (userId != null) {
+                // If we find a user with that name, replace with the <@ID> format
+                builder.append(message, copiedUpTo, index).append("<@").append(userId).append('>');
+                copiedUpTo = endIndex;
+            }
 
-            // The replacement mention includes an @ so skip past the mention so that we don't try to replace it as well
-            index = index + mention.length();
+            // Continue after the mention, so that an @ inside it isn't treated as another mention
+            index = message.indexOf('@', endIndex);
         }
-        return message;
+        builder.append(message, copiedUpTo, message.length());
+        return builder.toString();
     }
 
-    void chatWebhookSendMessage(String username, String avatarUrl, String embedUsername, String embedAvatarUrl, String embedFooterText, String embedFooterIcon, String title, String content, PlayerPlatform.Platform platform, Color highlightColor) {
+    void chatWebhookSendMessage(DiscordSendScheduler.Priority priority, String username, String avatarUrl, String embedUsername, String embedAvatarUrl, String embedFooterText, String embedFooterIcon, String title, String content, PlayerPlatform.PlatformInfo platform, Color highlightColor) {
         // Since we upload the footer icon as an attachment, use an attachment:// URL here and upload with the same name later
         WebhookEmbedBuilder embedBuilder = new WebhookEmbedBuilder()
                 .setDescription(content)
@@ -155,15 +186,8 @@ public class DiscordBot extends ListenerAdapter {
         messageBuilder.addEmbeds(embedBuilder.build());
         final WebhookMessage message = messageBuilder.build();
 
-        // Try to fetch an existing webhook for this user
-        if (webhooks.containsKey(username)) {
-            webhookSendMessage(webhooks.get(username), message);
-        } else {
-            chatChannel.createWebhook(username).queue(newWebhook -> {
-                webhookSendMessage(newWebhook, message);
-                webhooks.put(username, newWebhook);
-            });
-        }
+        // Send the message through this user's webhook from the pool, remembering the platform icon's URL if we uploaded it
+        pooledWebhookSendMessage(priority, username, message, platform == null ? null : sentMessage -> platformIcons.recordUpload(platform, sentMessage));
 
         // Send the message to the webhook
 //        try (WebhookClient chatWebhook = WebhookClient.withUrl(chatWebhookUrl)) {
@@ -198,22 +222,65 @@ public class DiscordBot extends ListenerAdapter {
 //        });
     }
 
-    private void webhookSendMessage(Webhook webhook, WebhookMessage message) {
-        try (WebhookClient chatWebhook = WebhookClient.withUrl(webhook.getUrl())) {
-            chatWebhook.send(message);
-        } catch (club.minnced.discord.webhook.exception.HttpException ex2) {
-            logger.error("Unable to send chat webhook message!");
+    // Sends several chat messages as a single webhook message, with one embed per message
+    void chatWebhookSendBatch(List<ChatRelayPipeline.DiscordChat> chats) {
+        // If they're all from the same Discord user, send the message as them. Otherwise, send it as ourselves, since
+        // each embed shows who it's from anyway.
+        ChatRelayPipeline.DiscordChat first = chats.get(0);
+        boolean singleSender = chats.stream().allMatch(chat -> Objects.equals(chat.discordName(), first.discordName()));
+        SelfUser botUser = jda.getSelfUser();
+        WebhookMessageBuilder messageBuilder = new WebhookMessageBuilder()
+                .setUsername(singleSender ? first.discordName() : botUser.getEffectiveName())
+                .setAvatarUrl(singleSender ? first.discordIcon() : botUser.getAvatarUrl());
+
+        for (ChatRelayPipeline.DiscordChat chat : chats) {
+            messageBuilder.addEmbeds(new WebhookEmbedBuilder()
+                    .setDescription(chat.message())
+                    .setAuthor(new WebhookEmbed.EmbedAuthor(chat.username(), chat.minecraftIcon(), null))
+                    .build()
+            );
         }
+
+        // Batches all go through the same webhook, so they arrive in order
+        pooledWebhookSendMessage(DiscordSendScheduler.Priority.CHAT, CHAT_BATCH_WEBHOOK_KEY, messageBuilder.build(), null);
     }
 
-    private WebhookMessageBuilder addFooterToWebhookMessage(WebhookMessageBuilder messageBuilder, WebhookEmbedBuilder embedBuilder, PlayerPlatform.Platform platform, String title) {
-        WebhookMessageBuilder originalMessageBuilder = messageBuilder;
+    // Sends the message through the webhook from the pool for the given key (usually the sender's username)
+    private void pooledWebhookSendMessage(DiscordSendScheduler.Priority priority, String key, WebhookMessage message, Consumer<ReadonlyMessage> onSent) {
+        sendScheduler.submit(priority, webhookPool.routeFor(key), () ->
+            webhookPool.get(key).thenCompose(webhook ->
+                webhookSendMessage(webhook, message, onSent).thenCompose(result -> {
+                    // If the webhook was deleted, replace it and send the message through the new one
+                    if (result != WebhookClientRegistry.SendResult.NOT_FOUND) return CompletableFuture.completedFuture(result);
+                    webhookPool.invalidate(key, webhook);
+                    return webhookPool.get(key).thenCompose(newWebhook -> webhookSendMessage(newWebhook, message, onSent));
+                })
+            )
+        ).exceptionally(throwable -> {
+            logger.error("Unable to create chat webhook: {}", throwable.toString());
+            return null;
+        });
+    }
 
+    private CompletableFuture<WebhookClientRegistry.SendResult> webhookSendMessage(Webhook webhook, WebhookMessage message, Consumer<ReadonlyMessage> onSent) {
+        return webhookClients.send(webhook, message, onSent);
+    }
+
+    private WebhookMessageBuilder addFooterToWebhookMessage(WebhookMessageBuilder messageBuilder, WebhookEmbedBuilder embedBuilder, PlayerPlatform.PlatformInfo platform, String title) {
         if (platform != null) {
-            try (InputStream platformIconInputStream = getClass().getResourceAsStream(platform.getIconPath())) {
-                if (platformIconInputStream == null) throw new IOException(); // Causes us to re-send without the footer
+            // If we've uploaded this icon recently, just link to that
+            String platformIconUrl = platformIcons.getUrl(platform);
+            if (platformIconUrl != null) {
+                embedBuilder.setFooter(new WebhookEmbed.EmbedFooter(
+                        "Currently playing on " + platform, platformIconUrl
+                ));
+                return messageBuilder;
+            }
 
-                // Now that we've got an InputStream for the platform icon, create and add the footer
+            byte[] platformIcon = platformIcons.getIcon(platform);
+            // If we don't have the icon, just return the original, unmodified WebhookMessageBuilder
+            if (platformIcon != null) {
+                // Now that we've got the platform icon, create and add the footer
 
                 // Mobile Discord notifications like to show the name of this attachment instead of the
                 // actual message. To work around this, we set the filename to the message title, but we
@@ -222,15 +289,11 @@ public class DiscordBot extends ListenerAdapter {
                 title += "icon.png"; // Add suffix
 
                 // Attach the footer icon to the message
-                messageBuilder = messageBuilder.addFile(title, platformIconInputStream);
+                messageBuilder = messageBuilder.addFile(title, platformIcon);
                 // Add the attached image to the footer
                 embedBuilder.setFooter(new WebhookEmbed.EmbedFooter(
                         "Currently playing on " + platform, "attachment://"+title
                 ));
-            } catch (IOException ignored) {
-                // If we can't read the footer image, just return the original,
-                // unmodified WebhookMessageBuilder
-                return originalMessageBuilder;
             }
         }
         return messageBuilder;
@@ -276,19 +339,19 @@ public class DiscordBot extends ListenerAdapter {
             );
         });
         */
-        // Remove any leftover webhooks we've previously created
-        Objects.requireNonNull(chatChannel).retrieveWebhooks().queue(webhooks ->
-            webhooks.forEach(webhook -> {
-                // We only want to delete INCOMING webhooks
-                if (webhook.getType() != WebhookType.INCOMING) return;
-                // We only want to delete webhooks we can identify the owner of
-                if (webhook.getOwner() == null) return;
-                // We only want to delete webhooks we created
-                if (!jda.getSelfUser().getId().equals(webhook.getOwner().getId())) return;
-
-                webhook.delete().queue();
-            })
-        );
+        // Reuse the webhooks we've previously created, and remove any that don't fit in the pool
+        webhookPool = new WebhookPool(chatChannel, config.discordWebhookPoolSize);
+        Objects.requireNonNull(chatChannel).retrieveWebhooks().queue(webhooks -> {
+            List<Webhook> ownWebhooks = webhooks.stream()
+                    // We only want INCOMING webhooks
+                    .filter(webhook -> webhook.getType() == WebhookType.INCOMING)
+                    // We only want webhooks we can identify the owner of
+                    .filter(webhook -> webhook.getOwner() != null)
+                    // We only want webhooks we created
+                    .filter(webhook -> jda.getSelfUser().getId().equals(webhook.getOwner().getId()))
+                    .toList();
+            webhookPool.adopt(ownWebhooks).forEach(webhook -> webhook.delete().queue());
+        });
 
         // Remove any old Discord commands
         jda.retrieveCommands().queue(commands ->
@@ -309,6 +372,14 @@ public class DiscordBot extends ListenerAdapter {
                 logger.warn("Unable to find Discord account linked role: {}", ex.toString());
             }
         }
+
+        // Index the guild members for @mentions, and note which of them can join the Minecraft server. This also loads
+        // members that aren't cached yet.
+        memberResync = new GuildMemberResync(logger, guild, member -> {
+            mentionIndex.update(member.getUser());
+            plugin.allowlist.setHasRole(member.getId(), member.getRoles().contains(accountLinkedRole));
+        }, plugin.allowlist::setMembersLoaded);
+        memberResync.resyncNow();
     }
 
     @Override
@@ -344,12 +415,18 @@ public class DiscordBot extends ListenerAdapter {
             String code = linkCode.getAsString().toUpperCase();
 
             event.deferReply(true).queue(); // Tell the user we're working on it
-            String response = plugin.database.linkDiscordAccountWithCode(userID, code);
-            event.getHook().sendMessage(response).queue(); // Give actual response once done
+            // Do the database work off of the JDA event thread
+            // Whether the user has been given a response, so that an error afterwards doesn't send them a second one
+            AtomicBoolean replied = new AtomicBoolean(false);
+            plugin.database.linkDiscordAccountWithCodeAsync(userID, code).thenCompose(response -> {
+                event.getHook().sendMessage(response).queue(); // Give actual response once done
+                replied.set(true);
+
+                // Verify linking was successful
+                return plugin.database.getAccountFromDiscordAsync(userID);
+            }).thenAccept(account -> {
+                if (account == null) return;
 
-            // Verify linking was successful
-            UUID account = plugin.database.getAccountFromDiscord(userID);
-            if (account != null) {
                 // Remove button from message and replace text with post-linking message
                 Message message = event.getMessage();
                 if (message == null) {
@@ -364,7 +441,7 @@ public class DiscordBot extends ListenerAdapter {
 //                logger.info("Updating message...");
                 message.editMessageEmbeds(new EmbedBuilder()
                         .setDescription(
-                                config.minecraftNewPlayerMessage.replace("{username}", plugin.database.getMinecraftNicknameFor(account))
+                                config.minecraftNewPlayerMessage.render(plugin.database.getMinecraftNicknameFor(account))
                         )
                         .build()
                 ).queue();
@@ -379,7 +456,13 @@ public class DiscordBot extends ListenerAdapter {
                         guild.addRoleToMember(event.getMember(), accountLinkedRole).queue();
                     }
                 }
-            }
+            }).exceptionally(throwable -> {
+                logger.error("Unable to link Discord account! Discord Snowflake ID: '{}', link code: '{}'. Exception: {}", userID, code, throwable.toString());
+                if (!replied.get()) {
+                    event.getHook().sendMessage("Unknown error while linking your account. Please contact the server administrator.").queue();
+                }
+                return null;
+            });
         }
     }
 
@@ -392,20 +475,38 @@ public class DiscordBot extends ListenerAdapter {
         // Ignore if we don't send messages for reactions
         if (config.discordMessageReactionTemplate == null) return;
 
-        String template = config.discordMessageReactionTemplate;
+        boolean fromWebhook = event.getMessageAuthorId().equals("0");
+
+        // Fetch who reacted (and, for webhook messages, the message itself) through the send scheduler, rather than
+        // blocking the event thread on it
+        sendScheduler.submit(DiscordSendScheduler.Priority.CHAT, "channel:" + chatChannel.getId(), () -> {
+            CompletableFuture<User> reactedBy = event.retrieveUser().submit();
+            // ID of 0 means it came from a webhook, check the message to figure out which Minecraft user sent it
+            // To do this, we need to find the message the reaction is for, then fetch the player name from the embed
+            CompletableFuture<Message> reactedMessage = fromWebhook
+                    ? chatChannel.retrieveMessageById(event.getMessageId()).submit().exceptionally(throwable -> null)
+                    : CompletableFuture.completedFuture(null);
+            return reactedBy.thenCombine(reactedMessage, (user, message) -> renderReaction(event, user.getEffectiveName(), message));
+        }).thenAccept(message -> {
+            if (message != null) serverMessageCallback.accept(message);
+        }).exceptionally(throwable -> {
+            logger.error("Unable to relay reaction: {}", throwable.toString());
+            return null;
+        });
+    }
+
+    // Returns the in-game message for a reaction, or null if it can't be relayed
+    private String renderReaction(MessageReactionAddEvent event, String reactedBy, Message reactedMessage) {
+        MessageTemplate template = config.discordMessageReactionTemplate;
 
-        String reactedBy = event.retrieveUser().complete().getEffectiveName();
         String reaction = event.getReaction().getEmoji().getName();
         String reactedTo;
 
         if (event.getMessageAuthorId().equals("0")) {
-            // ID of 0 means it came from a webhook, check the message to figure out which Minecraft user sent it
-            // To do this, we need to find the message the reaction is for, then fetch the player name from the embed
-            Message reactedMessage = chatChannel.retrieveMessageById(event.getMessageId()).complete();
             if (reactedMessage == null) {
                 // This shouldn't ever be possible, as we just received a reaction event for this message, unless we're unable to view message history.
                 logger.error("Detected reaction to webhook message but was unable to find the message. Did you grant the bot access to read message history?");
-                return;
+                return null;
             }
 
             // If we aren't able to find that a Minecraft user sent this message, just
@@ -435,16 +536,11 @@ public class DiscordBot extends ListenerAdapter {
                 reactedTo = author.getEffectiveName();
             else {
                 logger.error("Unable to determine who reacted to message!");
-                return;
+                return null;
             }
         }
 
-        serverMessageCallback.accept(
-                template
-                        .replace("{from}", reactedBy)
-                        .replace("{to}", reactedTo)
-                        .replace("{reaction}", reaction)
-        );
+        return template.render(reactedBy, reactedTo, reaction);
     }
 
     @Override
@@ -529,51 +625,92 @@ public class DiscordBot extends ListenerAdapter {
         ));
     }
 
+    @Override
+    public void onGuildMemberRoleAdd(@NotNull GuildMemberRoleAddEvent event) {
+        super.onGuildMemberRoleAdd(event);
+
+        // Let them join the Minecraft server once they have the account linked role
+        if (event.getRoles().contains(accountLinkedRole)) plugin.allowlist.setHasRole(event.getUser().getId(), true);
+    }
+
     @Override
     public void onGuildMemberRoleRemove(@NotNull GuildMemberRoleRemoveEvent event) {
         super.onGuildMemberRoleRemove(event);
 
+        // We only care about the account linked role
+        if (!event.getRoles().contains(accountLinkedRole)) return;
+        plugin.allowlist.setHasRole(event.getUser().getId(), false);
+
         // Check if this ID corresponds to a linked Discord account for the server
         // If not, we don't need to do anything about it
-        UUID minecraftID = plugin.database.getAccountFromDiscord(event.getUser().getId());
-        if (minecraftID == null) return;
-
-        // Get the Minecraft player object
-        Optional<Player> player = plugin.server.getPlayer(minecraftID);
-        if (player.isEmpty()) return;
+        plugin.database.getAccountFromDiscordAsync(event.getUser().getId()).thenAccept(minecraftID -> {
+            if (minecraftID == null) return;
 
-        // We only care about the account linked role
-        if (!event.getRoles().contains(accountLinkedRole)) return;
+            // Get the Minecraft player object
+            Optional<Player> player = plugin.server.getPlayer(minecraftID);
+            if (player.isEmpty()) return;
 
-        // If the user lost their "account linked" role, kick them from the server
-        logger.warn("Player lost their Discord role, kicking from Minecraft server.");
-        player.get().disconnect(Component.text(config.discordUserLeftServerMessage));
+            // If the user lost their "account linked" role, kick them from the server
+            logger.warn("Player lost their Discord role, kicking from Minecraft server.");
+            player.get().disconnect(Component.text(config.discordUserLeftServerMessage));
+        });
     }
 
     @Override
     public void onGuildMemberRemove(@NotNull GuildMemberRemoveEvent event) {
         String removedUserID = event.getUser().getId();
+        mentionIndex.remove(removedUserID);
+        plugin.allowlist.setHasRole(removedUserID, false);
 
         // Check if this ID corresponds to a linked Discord account for the server
         // If not, we don't need to do anything about it
-        UUID minecraftID = plugin.database.getAccountFromDiscord(removedUserID);
-        if (minecraftID == null) return;
+        plugin.database.getAccountFromDiscordAsync(removedUserID).thenAccept(minecraftID -> {
+            if (minecraftID == null) return;
 
-        // Get the Minecraft player object
-        Optional<Player> player = plugin.server.getPlayer(minecraftID);
-        if (player.isEmpty()) return;
+            // Get the Minecraft player object
+            Optional<Player> player = plugin.server.getPlayer(minecraftID);
+            if (player.isEmpty()) return;
 
-        // Kick the player
-        logger.warn("Player left Discord server, kicking from Minecraft server.");
-        player.get().disconnect(Component.text(config.discordUserLeftServerMessage));
+            // Kick the player
+            logger.warn("Player left Discord server, kicking from Minecraft server.");
+            player.get().disconnect(Component.text(config.discordUserLeftServerMessage));
+        });
     }
 
     @Override
     public void onGuildMemberJoin(@NotNull GuildMemberJoinEvent event) {
         super.onGuildMemberJoin(event);
+        // JDA caches the new member itself, so just index them
+        mentionIndex.update(event.getUser());
+    }
+
+    @Override
+    public void onGuildMemberUpdate(@NotNull GuildMemberUpdateEvent event) {
+        // Covers username, display name, nickname and avatar changes for guild members
+        mentionIndex.update(event.getUser());
+        refreshPlayerSessions(event.getUser().getId());
+    }
+
+    @Override
+    public void onUserUpdateName(@NotNull UserUpdateNameEvent event) {
+        if (guild != null && guild.isMember(event.getUser())) mentionIndex.update(event.getUser());
+        refreshPlayerSessions(event.getUser().getId());
+    }
+
+    @Override
+    public void onUserUpdateGlobalName(@NotNull UserUpdateGlobalNameEvent event) {
+        if (guild != null && guild.isMember(event.getUser())) mentionIndex.update(event.getUser());
+        refreshPlayerSessions(event.getUser().getId());
+    }
+
+    @Override
+    public void onUserUpdateAvatar(@NotNull UserUpdateAvatarEvent event) {
+        refreshPlayerSessions(event.getUser().getId());
+    }
 
-        // Refresh guild members cache whenever a new member joins
-        new Thread(() -> guild.loadMembers().get()).start();
+    // Updates the Discord name and avatar of any online players linked to this user
+    private void refreshPlayerSessions(String userId) {
+        plugin.sessions.forDiscordAccount(userId, session -> session.refreshDiscordDetails(this));
     }
 
     private void onPrivateMessageReceived(MessageReceivedEvent event) {
@@ -581,21 +718,36 @@ public class DiscordBot extends ListenerAdapter {
         Message message = event.getMessage();
         String messageContent = message.getContentDisplay();
 
-        // Get the UUID of the user that is sending the reply
-        UUID sourceAccount = plugin.database.getAccountFromDiscord(sourceUser.getId());
-
         if (message.getType() == MessageType.INLINE_REPLY) {
             // Message Reference is the message that is being replied o
             MessageReference messageReference = message.getMessageReference();
             if (messageReference == null) return; // Should never be possible, since we checked the message type
-            messageReference.resolve().queue(repliedMessage -> {
-                // Get the ID of the message the user replied to, then find the Discord ID of its sender
-                String repliedId = repliedMessage.getId();
-                String discordID = plugin.database.getDiscordDMSender(repliedId);
-                if (discordID == null) return; // If it's not from a player DM, ignore it
-                // Use that discord ID to find the Minecraft username the user is replying to
-                UUID recipientAccount = plugin.database.getAccountFromDiscord(discordID);
-                plugin.sendPrivateMessage(sourceAccount, recipientAccount, messageContent);
+
+            // Get the ID of the message the user replied to, then find the Discord ID of its sender
+            String repliedId = messageReference.getMessageId();
+            plugin.database.getDiscordDMSenderAsync(repliedId).thenCompose(discordID -> {
+                if (discordID == null) return CompletableFuture.<Void>completedFuture(null); // If it's not from a player DM, ignore it
+
+                // Get the UUID of the user that is sending the reply, and use the sender's Discord ID to find the
+                // Minecraft account the user is replying to
+                return plugin.database.getAccountFromDiscordAsync(sourceUser.getId()).thenAcceptBoth(
+                        plugin.database.getAccountFromDiscordAsync(discordID),
+                        (sourceAccount, recipientAccount) -> {
+                            if (sourceAccount == null) {
+                                message.reply("You need to link your Minecraft account before you can reply to messages!").queue();
+                                return;
+                            }
+                            if (recipientAccount == null) {
+                                message.reply("The player you're replying to doesn't have a linked Minecraft account anymore.").queue();
+                                return;
+                            }
+                            plugin.sendPrivateMessage(sourceAccount, recipientAccount, messageContent);
+                        }
+                );
+            }).exceptionally(throwable -> {
+                logger.error("Unable to relay private message reply from Discord user {}: {}", sourceUser.getId(), throwable.toString());
+                message.reply("Unable to send your reply. Please contact the server administrator.").queue();
+                return null;
             });
             return;
         }
@@ -639,21 +791,26 @@ public class DiscordBot extends ListenerAdapter {
     }
 
     public void sendLinkAnnouncement(String message) {
-        accountLinkingChannel.sendMessageEmbeds(new EmbedBuilder()
-                .setDescription(message)
-                .build()
-        )
-                .addActionRow(
-                        Button.primary("link", "Link Discord Account")
-                ).queue();
+        sendScheduler.submit(DiscordSendScheduler.Priority.DIRECT, "channel:" + accountLinkingChannel.getId(), () ->
+                accountLinkingChannel.sendMessageEmbeds(new EmbedBuilder()
+                        .setDescription(message)
+                        .build()
+                )
+                        .addActionRow(
+                                Button.primary("link", "Link Discord Account")
+                        ).submit()
+        ).exceptionally(throwable -> {
+            logger.error("Unable to send account linking message: {}", throwable.toString());
+            return null;
+        });
     }
 
-    public void sendAnnouncement(Color highlightColor, String title, String message, String playerName, String playerIcon, String footerText, String footerIcon, PlayerPlatform.Platform platform) {
+    public void sendAnnouncement(Color highlightColor, String title, String message, String playerName, String playerIcon, String footerText, String footerIcon, PlayerPlatform.PlatformInfo platform) {
         SelfUser botUser = jda.getSelfUser();
-        chatWebhookSendMessage(botUser.getEffectiveName(), botUser.getAvatarUrl(), playerName, playerIcon, footerText, footerIcon, title, message, platform, highlightColor);
+        chatWebhookSendMessage(DiscordSendScheduler.Priority.ANNOUNCEMENT, botUser.getEffectiveName(), botUser.getAvatarUrl(), playerName, playerIcon, footerText, footerIcon, title, message, platform, highlightColor);
     }
 
-    public void sendAnnouncement(Color highlightColor, String message, String playerName, String playerIcon, PlayerPlatform.Platform platform) {
+    public void sendAnnouncement(Color highlightColor, String message, String playerName, String playerIcon, PlayerPlatform.PlatformInfo platform) {
         sendAnnouncement(highlightColor, message, null,  playerName, playerIcon, null, null, platform);
     }
 
@@ -664,28 +821,36 @@ public class DiscordBot extends ListenerAdapter {
     }
 
     public void sendPrivateMessage(String sender, String recipient, String message) {
-        // Get the name and icon for the sender to build the embed
-        UUID senderAccount = plugin.database.getAccountFromDiscord(sender);
-        String senderName = plugin.database.getMinecraftNicknameFor(senderAccount);
-        String senderIcon = String.format(config.minecraftHeadURL, senderAccount.toString().replaceAll("-",""), senderName);
-        MessageEmbed embed = new EmbedBuilder()
-                .setAuthor(senderName, null, senderIcon)
-                .setDescription(message)
-                .setColor(Color.cyan)
-                .setFooter("This is a private message.")
-                .build();
-
-        // Get the Discord member for the recipient
-        guild.retrieveMember(UserSnowflake.fromId(recipient)).queue(member ->
-            // Get our DMs with them
-            member.getUser().openPrivateChannel().queue((channel) ->
-                // Send the message to them
-                channel.sendMessageEmbeds(embed).queue(sentMessage ->
+        // Get the name and icon for the sender to build the embed, without waiting on the database
+        plugin.database.getAccountFromDiscordAsync(sender).thenCompose(senderAccount -> {
+            if (senderAccount == null) {
+                logger.warn("Not sending private message from Discord user {}: no linked Minecraft account.", sender);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return plugin.database.getMinecraftNicknameForAsync(senderAccount).thenCompose(senderName -> {
+                String senderIcon = String.format(config.minecraftHeadURL, senderAccount.toString().replaceAll("-", ""), senderName);
+                MessageEmbed embed = new EmbedBuilder()
+                        .setAuthor(senderName, null, senderIcon)
+                        .setDescription(message)
+                        .setColor(Color.cyan)
+                        .setFooter("This is a private message.")
+                        .build();
+
+                return sendScheduler.submit(DiscordSendScheduler.Priority.DIRECT, "dm:" + recipient, () ->
+                    // Get the Discord member for the recipient
+                    guild.retrieveMember(UserSnowflake.fromId(recipient)).submit()
+                        // Get our DMs with them
+                        .thenCompose(member -> member.getUser().openPrivateChannel().submit())
+                        // Send the message to them
+                        .thenCompose(channel -> channel.sendMessageEmbeds(embed).submit())
                         // Add the message to the database
-                        plugin.database.addDiscordDM(sentMessage.getId(), sender, recipient)
-                )
-            )
-        );
+                        .thenAccept(sentMessage -> plugin.database.addDiscordDMAsync(sentMessage.getId(), sender, recipient))
+                );
+            });
+        }).exceptionally(throwable -> {
+            logger.error("Unable to send private message: {}", throwable.toString());
+            return null;
+        });
     }
 
     public void sendDeathAlert(String discordID, long timestamp) {
@@ -698,14 +863,43 @@ public class DiscordBot extends ListenerAdapter {
                 .setColor(Color.red)
                 .build();
 
-        // Get the Discord member for the recipient
-        guild.retrieveMember(UserSnowflake.fromId(discordID)).queue(member ->
-                // Get our DMs with them
-                member.getUser().openPrivateChannel().queue((channel) ->
+        sendScheduler.submit(DiscordSendScheduler.Priority.DIRECT, "dm:" + discordID, () ->
+                // Get the Discord member for the recipient
+                guild.retrieveMember(UserSnowflake.fromId(discordID)).submit()
+                        // Get our DMs with them
+                        .thenCompose(member -> member.getUser().openPrivateChannel().submit())
                         // Send the message to them
-                        channel.sendMessageEmbeds(embed).queue()
-                )
-        );
+                        .thenCompose(channel -> channel.sendMessageEmbeds(embed).submit())
+        ).exceptionally(throwable -> {
+            logger.error("Unable to send death alert: {}", throwable.toString());
+            return null;
+        });
+    }
+
+    // Number of guild members in the cache, and number and duration of full member list reloads
+    public long getCachedMemberCount() {
+        return memberResync == null ? 0 : memberResync.getCachedMemberCount();
+    }
+
+    public long getMemberResyncCount() {
+        return memberResync == null ? 0 : memberResync.getResyncCount();
+    }
+
+    public long getLastMemberResyncMillis() {
+        return memberResync == null ? 0 : memberResync.getLastResyncMillis();
+    }
+
+    // Number of queued Discord requests of the given priority, and how long requests of that priority have waited
+    public int getSendQueueDepth(DiscordSendScheduler.Priority priority) {
+        return sendScheduler.getQueueDepth(priority);
+    }
+
+    public double getAverageSendWaitMillis(DiscordSendScheduler.Priority priority) {
+        return sendScheduler.getAverageWaitMillis(priority);
+    }
+
+    public long getMaxSendWaitMillis(DiscordSendScheduler.Priority priority) {
+        return sendScheduler.getMaxWaitMillis(priority);
     }
 
     public boolean isMemberLinkedInServer(String discordID) {
@@ -0,0 +1,244 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import okhttp3.Headers;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Sends all outbound Discord traffic from one place, so that when we're being rate limited the most important messages
+// go out first instead of everything stalling together.
+// Each request belongs to a route (a channel, DM or webhook) and a priority. Requests on the same route are sent one
+// at a time in the order they were submitted; between routes, the highest priority (then oldest) request goes first.
+// Each route also has a token bucket which is filled in from Discord's rate limit headers when we see them, so a
+// route that Discord says is exhausted is skipped (letting other routes through) until its bucket resets.
+class DiscordSendScheduler implements AutoCloseable {
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    // In order from most to least important
+    enum Priority {
+        // Private messages and account linking prompts
+        DIRECT,
+        // Chat relayed from Minecraft
+        CHAT,
+        // Join, leave, death, advancement etc. announcements
+        ANNOUNCEMENT
+    }
+
+    private record Job<T>(Priority priority, long sequence, long submittedAt, Supplier<CompletableFuture<T>> action, CompletableFuture<T> result) {
+        void run(Runnable onDone) {
+            CompletableFuture<T> sent;
+            try {
+                sent = action.get();
+            } catch (Exception e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((value, throwable) -> {
+                onDone.run();
+                if (throwable == null) result.complete(value);
+                else result.completeExceptionally(throwable);
+            });
+        }
+    }
+
+    private static class Route {
+        final ArrayDeque<Job<?>> jobs = new ArrayDeque<>();
+        boolean inFlight = false;
+        // Requests left before the bucket resets, or -1 if Discord hasn't told us (in which case the underlying
+        // clients' own rate limiting applies)
+        int remaining = -1;
+        long resetAt = 0;
+
+        boolean hasToken(long now) {
+            return remaining != 0 || now - resetAt >= 0;
+        }
+
+        void takeToken() {
+            if (remaining == 0) remaining = -1; // The bucket has reset, but we don't know its new size until Discord tells us
+            else if (remaining > 0) remaining--;
+        }
+    }
+
+    private final Logger logger;
+    // All of the below are guarded by this
+    private final Map<String, Route> routes = new HashMap<>();
+    private final int[] queueDepth = new int[Priority.values().length];
+    private final long[] dispatched = new long[Priority.values().length];
+    private final long[] totalWaitNanos = new long[Priority.values().length];
+    private final long[] maxWaitNanos = new long[Priority.values().length];
+    private long nextSequence = 0;
+    private int inFlight = 0;
+    private boolean closed = false;
+
+    private final Thread dispatcher;
+
+    DiscordSendScheduler(Logger logger) {
+        this.logger = logger;
+        dispatcher = new Thread(this::run, "MinecraftDiscordPlugin Discord Sender");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    // Queues a request. The action is called (on the dispatcher thread) once it's this request's turn, and should
+    // start sending and return without blocking. The returned future completes along with the action's.
+    synchronized <T> CompletableFuture<T> submit(Priority priority, String route, Supplier<CompletableFuture<T>> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IllegalStateException("Discord sender is shut down"));
+            return result;
+        }
+
+        routes.computeIfAbsent(route, key -> new Route()).jobs.addLast(new Job<>(priority, nextSequence++, System.nanoTime(), action, result));
+        queueDepth[priority.ordinal()]++;
+        notifyAll();
+        return result;
+    }
+
+    // Updates the route's bucket from the headers of a response Discord sent for it
+    void updateRateLimit(String route, Headers headers) {
+        String remainingHeader = headers.get("X-RateLimit-Remaining");
+        String resetAfterHeader = headers.get("X-RateLimit-Reset-After");
+        String retryAfterHeader = headers.get("Retry-After");
+        if (remainingHeader == null && retryAfterHeader == null) return;
+
+        long now = System.nanoTime();
+        try {
+            synchronized (this) {
+                Route bucket = routes.computeIfAbsent(route, key -> new Route());
+                if (remainingHeader != null && resetAfterHeader != null) {
+                    bucket.remaining = Integer.parseInt(remainingHeader);
+                    bucket.resetAt = now + secondsToNanos(resetAfterHeader);
+                }
+                // We were rate limited, so don't try again until Discord says we can
+                if (retryAfterHeader != null) {
+                    bucket.remaining = 0;
+                    bucket.resetAt = Math.max(bucket.resetAt, now + secondsToNanos(retryAfterHeader));
+                }
+                notifyAll();
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Unable to parse Discord rate limit headers: {}", e.getMessage());
+        }
+    }
+
+    private static long secondsToNanos(String seconds) {
+        return (long) (Double.parseDouble(seconds) * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void run() {
+        while (true) {
+            Job<?> job;
+            Route route;
+            synchronized (this) {
+                long now = System.nanoTime();
+                Route bestRoute = null;
+                // When the soonest rate limited route frees up, if any
+                long wakeAt = Long.MAX_VALUE;
+
+                Iterator<Route> iterator = routes.values().iterator();
+                while (iterator.hasNext()) {
+                    Route candidate = iterator.next();
+                    if (candidate.inFlight) continue;
+                    if (!candidate.hasToken(now)) {
+                        if (!candidate.jobs.isEmpty()) wakeAt = Math.min(wakeAt, candidate.resetAt);
+                        continue;
+                    }
+                    // Forget idle routes, unless we still need to remember that they're rate limited
+                    if (candidate.jobs.isEmpty()) {
+                        iterator.remove();
+                        continue;
+                    }
+                    if (bestRoute == null || isBefore(candidate.jobs.peekFirst(), bestRoute.jobs.peekFirst())) {
+                        bestRoute = candidate;
+                    }
+                }
+
+                if (bestRoute == null) {
+                    if (closed && inFlight == 0 && routes.values().stream().allMatch(r -> r.jobs.isEmpty())) return;
+                    try {
+                        if (wakeAt == Long.MAX_VALUE) wait();
+                        else TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, wakeAt - now));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                route = bestRoute;
+                job = route.jobs.pollFirst();
+                route.inFlight = true;
+                route.takeToken();
+                inFlight++;
+
+                int priority = job.priority().ordinal();
+                long waited = now - job.submittedAt();
+                queueDepth[priority]--;
+                dispatched[priority]++;
+                totalWaitNanos[priority] += waited;
+                maxWaitNanos[priority] = Math.max(maxWaitNanos[priority], waited);
+            }
+
+            try {
+                job.run(() -> {
+                    synchronized (this) {
+                        route.inFlight = false;
+                        inFlight--;
+                        notifyAll();
+                    }
+                });
+            } catch (Exception e) {
+                logger.error("Error sending Discord request: {}\n\tException: {}", e, Arrays.toString(e.getStackTrace()));
+            }
+        }
+    }
+
+    private static boolean isBefore(Job<?> a, Job<?> b) {
+        if (a.priority() != b.priority()) return a.priority().compareTo(b.priority()) < 0;
+        return a.sequence() < b.sequence();
+    }
+
+    // Number of requests of the given priority waiting to be sent
+    public synchronized int getQueueDepth(Priority priority) {
+        return queueDepth[priority.ordinal()];
+    }
+
+    // Average time requests of the given priority have spent queued before being sent
+    public synchronized double getAverageWaitMillis(Priority priority) {
+        int index = priority.ordinal();
+        if (dispatched[index] == 0) return 0;
+        return (double) totalWaitNanos[index] / dispatched[index] / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // Longest time a request of the given priority has spent queued before being sent
+    public synchronized long getMaxWaitMillis(Priority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[priority.ordinal()]);
+    }
+
+    // Stops accepting requests and gives the queued ones a moment to be sent
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            dispatcher.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()) {
+            int remaining;
+            synchronized (this) {
+                remaining = Arrays.stream(queueDepth).sum();
+            }
+            logger.warn("Discord sender didn't finish in time, {} request(s) not sent.", remaining);
+            dispatcher.interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Reloads the guild's full member list, passing each member to the given callback. JDA keeps its member cache up to
+// date from gateway events as members join, leave and change, so this only runs once the bot is ready, to fill in
+// everyone who was already in the server. Reloads run one at a time on their own thread, off of JDA's event thread.
+class GuildMemberResync {
+    private final Logger logger;
+    private final Guild guild;
+    private final Consumer<Member> onMember;
+    private final Runnable onComplete;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MinecraftDiscordPlugin Member Resync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long resyncCount = 0;
+    private volatile long lastResyncMillis = 0;
+
+    GuildMemberResync(Logger logger, Guild guild, Consumer<Member> onMember, Runnable onComplete) {
+        this.logger = logger;
+        this.guild = guild;
+        this.onMember = onMember;
+        this.onComplete = onComplete;
+    }
+
+    // Reloads as soon as any reload already running has finished
+    void resyncNow() {
+        executor.execute(this::resync);
+    }
+
+    private void resync() {
+        long start = System.nanoTime();
+        try {
+            guild.loadMembers(onMember).get();
+            onComplete.run();
+        } catch (Exception e) {
+            logger.warn("Unable to reload Discord server members: {}", e.toString());
+            return;
+        }
+        lastResyncMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        resyncCount++;
+    }
+
+    // Number of members currently in JDA's member cache
+    long getCachedMemberCount() {
+        return guild.getMemberCache().size();
+    }
+
+    // Number of full reloads that have finished, and how long the most recent one took
+    long getResyncCount() {
+        return resyncCount;
+    }
+
+    long getLastResyncMillis() {
+        return lastResyncMillis;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
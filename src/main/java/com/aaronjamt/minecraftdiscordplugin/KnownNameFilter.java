@@ -0,0 +1,41 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Set of every username and nickname that is (or has been) in the accounts table, so that lookups for names that
+// don't exist can be answered without querying the database.
+// Names are never removed, since an old name might still be in use in the other column. A stale name only costs a
+// database query, which is what would have happened anyway.
+class KnownNameFilter {
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+    // Lookups that may have matched and had to go to the database, and lookups that were rejected without it
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Must be called before the name is written to the database, so there's never a window where a lookup for it is
+    // rejected
+    void add(String name) {
+        if (name != null) names.add(name);
+    }
+
+    // Returns false if there's definitely no account with the given username or nickname
+    boolean mightContain(String name) {
+        if (names.contains(name)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,56 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory index of the pending account link codes, mirroring the linkCodes table.
+// Every unexpired code in the database is also in here, so rejected logins and Discord link attempts can be answered
+// without touching the database at all. Each account has at most one code at a time.
+class LinkCodeManager {
+    private final Map<String, PendingLinkCode> codes = new ConcurrentHashMap<>();
+    private final Map<UUID, PendingLinkCode> accounts = new ConcurrentHashMap<>();
+
+    record PendingLinkCode(String code, UUID account, long expiresAt) {
+        boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    // Returns the account's current code, or null if it doesn't have one or it has expired
+    PendingLinkCode getForAccount(UUID account) {
+        PendingLinkCode pending = accounts.get(account);
+        if (pending == null || pending.isExpired(System.currentTimeMillis())) return null;
+        return pending;
+    }
+
+    // Returns the pending code with the given value, or null if there's no such code or it has expired
+    PendingLinkCode get(String code) {
+        PendingLinkCode pending = codes.get(code);
+        if (pending == null || pending.isExpired(System.currentTimeMillis())) return null;
+        return pending;
+    }
+
+    // Returns whether the given code is already in use (even if expired, since it may still be in the database)
+    boolean contains(String code) {
+        return codes.containsKey(code);
+    }
+
+    // Adds a code, replacing any previous code for the same account
+    synchronized void put(PendingLinkCode pending) {
+        PendingLinkCode previous = accounts.put(pending.account(), pending);
+        if (previous != null) codes.remove(previous.code(), previous);
+        codes.put(pending.code(), pending);
+    }
+
+    synchronized void remove(PendingLinkCode pending) {
+        codes.remove(pending.code(), pending);
+        accounts.remove(pending.account(), pending);
+    }
+
+    // Drops all codes that have expired as of the given time
+    synchronized void removeExpired(long now) {
+        codes.values().removeIf(pending -> pending.isExpired(now));
+        accounts.values().removeIf(pending -> pending.isExpired(now));
+    }
+}
@@ -0,0 +1,46 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Who's allowed to join, kept in memory so that logins don't have to wait on the database or on each other.
+// Linked accounts are loaded from the database at startup and added as they're linked, while which Discord users have
+// the account linked role is loaded along with the guild's members and kept up to date from role and member events.
+// Lookups only read concurrent maps, so they never block.
+class LoginAllowlist {
+    enum Decision {
+        // Linked, and the Discord account has the account linked role
+        ALLOWED,
+        // Linked, but the Discord account has left the server or doesn't have the role
+        NOT_MEMBER,
+        // Not linked, or we haven't loaded the guild's members yet, so the database needs to be checked
+        UNKNOWN
+    }
+
+    private final Map<UUID, String> linkedAccounts = new ConcurrentHashMap<>();
+    private final Set<String> membersWithRole = ConcurrentHashMap.newKeySet();
+    private volatile boolean membersLoaded = false;
+
+    void setLinked(UUID account, String discordId) {
+        linkedAccounts.put(account, discordId);
+    }
+
+    void setHasRole(String discordId, boolean hasRole) {
+        if (hasRole) membersWithRole.add(discordId);
+        else membersWithRole.remove(discordId);
+    }
+
+    // Called once every guild member has been passed to setHasRole(), after which members without the role can be
+    // turned away without checking anything else
+    void setMembersLoaded() {
+        membersLoaded = true;
+    }
+
+    Decision check(UUID account) {
+        String discordId = linkedAccounts.get(account);
+        if (discordId == null || !membersLoaded) return Decision.UNKNOWN;
+        return membersWithRole.contains(discordId) ? Decision.ALLOWED : Decision.NOT_MEMBER;
+    }
+}
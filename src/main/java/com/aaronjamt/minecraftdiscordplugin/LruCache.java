@@ -0,0 +1,31 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Small thread-safe least-recently-used cache, for keeping hot lookups off the database (and other slow paths)
+class LruCache<K, V> {
+    private final Map<K, V> entries;
+
+    LruCache(int capacity) {
+        // Access order, so get() moves an entry to the back and the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+}
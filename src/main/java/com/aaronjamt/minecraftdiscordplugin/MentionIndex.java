@@ -0,0 +1,47 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import net.dv8tion.jda.api.entities.User;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Case-insensitive index from Discord usernames and display (global) names to user IDs, for converting @mentions in
+// Minecraft chat. Kept up to date from the guild member events, so lookups don't have to scan every cached user.
+class MentionIndex {
+    private final Map<String, String> userIds = new ConcurrentHashMap<>();
+    // The names each user is indexed under, so they can be removed when the user changes names or leaves
+    private final Map<String, List<String>> userNames = new ConcurrentHashMap<>();
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Adds the user, or re-indexes them under their current names
+    synchronized void update(User user) {
+        remove(user.getId());
+
+        String username = fold(user.getName());
+        String globalName = user.getGlobalName() == null ? null : fold(user.getGlobalName());
+        List<String> names = globalName == null || globalName.equals(username) ? List.of(username) : List.of(username, globalName);
+        for (String name : names) {
+            userIds.put(name, user.getId());
+        }
+        userNames.put(user.getId(), names);
+    }
+
+    synchronized void remove(String userId) {
+        List<String> names = userNames.remove(userId);
+        if (names == null) return;
+        for (String name : names) {
+            // Only remove the name if another user hasn't taken it over since
+            userIds.remove(name, userId);
+        }
+    }
+
+    // Returns the ID of the user with the given username or display name (ignoring case), or null if there isn't one
+    String find(String name) {
+        return userIds.get(fold(name));
+    }
+}
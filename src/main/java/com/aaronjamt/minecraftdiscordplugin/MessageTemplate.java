@@ -0,0 +1,84 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// A message template from the config file (such as "{username} joined the game"), compiled once when the config is
+// loaded into the literal text between placeholders and the placeholder to fill in at each gap.
+// Rendering appends the pieces to a reused builder in a single pass, rather than running one String.replace() per
+// placeholder. Values are inserted as-is, so a value that happens to contain "{message}" isn't replaced again.
+final class MessageTemplate {
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{([A-Za-z0-9_]+)}");
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+    private final String template;
+    // literals[i] comes before the value for slots[i], and the last literal comes after the last slot
+    private final String[] literals;
+    private final int[] slots;
+    private final int literalLength;
+
+    private MessageTemplate(String template, String[] literals, int[] slots) {
+        this.template = template;
+        this.literals = literals;
+        this.slots = slots;
+        int length = 0;
+        for (String literal : literals) length += literal.length();
+        this.literalLength = length;
+    }
+
+    // Compiles the template, where placeholders are the names that render() takes values for, in that order.
+    // Any other {names} in the template are left as literal text, and added to unknownPlaceholders so they can be
+    // reported. Returns null if the template itself is null (i.e. not set in the config).
+    static MessageTemplate compile(String template, List<String> placeholders, List<String> unknownPlaceholders) {
+        if (template == null) return null;
+
+        List<String> literals = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        int position = 0;
+        while (matcher.find()) {
+            literal.append(template, position, matcher.start());
+            position = matcher.end();
+
+            int slot = placeholders.indexOf(matcher.group(1));
+            if (slot < 0) {
+                unknownPlaceholders.add(matcher.group());
+                literal.append(matcher.group());
+                continue;
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            slots.add(slot);
+        }
+        literal.append(template, position, template.length());
+        literals.add(literal.toString());
+
+        return new MessageTemplate(
+                template,
+                literals.toArray(new String[0]),
+                slots.stream().mapToInt(Integer::intValue).toArray()
+        );
+    }
+
+    // Fills in the placeholders, with values given in the same order as the placeholders passed to compile()
+    String render(String... values) {
+        StringBuilder builder = BUILDER.get();
+        builder.setLength(0);
+        builder.ensureCapacity(literalLength + 64);
+
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(literals[i]);
+            builder.append(values[slots[i]]);
+        }
+        builder.append(literals[slots.length]);
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+}
@@ -0,0 +1,68 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Sorted, case-insensitive index of the usernames that can currently be sent a private message, for /msg
+// tab-completion. An account is included while its player is online, or at any time if it allows Discord DMs while
+// offline.
+// Updates are serialized, but lookups read the skip list directly so they never wait on an update.
+class MessageableNameIndex {
+    // Keyed by lowercase username followed by the account UUID, so that names sort case-insensitively while accounts
+    // that (briefly) share a name still get their own entries
+    private final NavigableMap<String, String> names = new ConcurrentSkipListMap<>();
+    private final Map<UUID, State> accounts = new HashMap<>();
+
+    private record State(String name, boolean online, boolean offlineMessaging) {
+        boolean isMessageable() {
+            return name != null && (online || offlineMessaging);
+        }
+    }
+
+    private static String key(String name, UUID account) {
+        return name.toLowerCase(Locale.ROOT) + '\0' + account;
+    }
+
+    synchronized void setOnline(UUID account, String name, boolean online) {
+        State state = accounts.get(account);
+        update(account, state, new State(name, online, state != null && state.offlineMessaging()));
+    }
+
+    synchronized void setOfflineMessaging(UUID account, String name, boolean offlineMessaging) {
+        State state = accounts.get(account);
+        update(account, state, new State(name, state != null && state.online(), offlineMessaging));
+    }
+
+    synchronized void rename(UUID account, String name) {
+        State state = accounts.get(account);
+        if (state == null) return;
+        update(account, state, new State(name, state.online(), state.offlineMessaging()));
+    }
+
+    private void update(UUID account, State oldState, State newState) {
+        if (oldState != null && oldState.isMessageable()) names.remove(key(oldState.name(), account));
+
+        if (newState.online() || newState.offlineMessaging()) {
+            accounts.put(account, newState);
+        } else {
+            accounts.remove(account);
+        }
+        if (newState.isMessageable()) names.put(key(newState.name(), account), newState.name());
+    }
+
+    // Returns up to limit names starting with the given prefix (ignoring case), in alphabetical order
+    List<String> findByPrefix(String prefix, int limit) {
+        String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+        // Every key starting with the prefix sorts between the prefix itself and the prefix followed by the highest
+        // possible character
+        Collection<String> matches = names.subMap(lowerPrefix, true, lowerPrefix + Character.MAX_VALUE, false).values();
+
+        // Use a set in case two accounts share a name, so it's only suggested once
+        Set<String> result = new LinkedHashSet<>();
+        for (String name : matches) {
+            if (result.size() >= limit) break;
+            result.add(name);
+        }
+        return new ArrayList<>(result);
+    }
+}
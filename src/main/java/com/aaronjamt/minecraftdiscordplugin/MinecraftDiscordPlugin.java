@@ -3,6 +3,7 @@ package com.aaronjamt.minecraftdiscordplugin;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.inject.Inject;
 import com.velocitypowered.api.command.CommandManager;
+import com.velocitypowered.api.event.EventTask;
 import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.ResultedEvent;
 import com.velocitypowered.api.event.Subscribe;
@@ -10,6 +11,7 @@ import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.connection.LoginEvent;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
 import com.velocitypowered.api.event.player.PlayerChatEvent;
+import com.velocitypowered.api.event.player.PlayerClientBrandEvent;
 import com.velocitypowered.api.event.player.ServerConnectedEvent;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
 import com.velocitypowered.api.event.proxy.ProxyReloadEvent;
@@ -20,7 +22,9 @@ import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.ServerConnection;
 import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
+import net.kyori.adventure.audience.Audience;
 import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
 import org.slf4j.Logger;
 
 import java.awt.*;
@@ -30,9 +34,8 @@ import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Plugin(
         id = "minecraftdiscordplugin",
@@ -48,7 +51,22 @@ public class MinecraftDiscordPlugin  {
     private final DiscordBot discordBot;
     final SQLiteDatabaseConnector database;
     private final PlayerPlatform playerPlatform;
-    private final Map<UUID, List<Long>> deathAlerts = new HashMap<>();
+    // What we know about each connected player, worked out when they log in
+    final PlayerSessions sessions = new PlayerSessions();
+    // Who's allowed to join, so most logins can be decided without the database
+    final LoginAllowlist allowlist = new LoginAllowlist();
+    private final ChatRelayPipeline chatRelay;
+    private final DeathAlertScheduler deathAlerts;
+    // Runs tasks on Velocity's scheduler, for work that follows a database lookup but shouldn't hold up the database
+    // thread
+    private final Executor proxyExecutor;
+
+    // Parsed versions of recent join, leave and server switch messages, which tend to repeat as players reconnect
+    private static final int SYSTEM_MESSAGE_CACHE_SIZE = 128;
+    private final LruCache<String, Component> systemMessages = new LruCache<>(SYSTEM_MESSAGE_CACHE_SIZE);
+
+    // The most recent Discord chat message to be relayed, which the next one waits for so that they stay in order
+    private CompletableFuture<Void> discordChatRelay = CompletableFuture.completedFuture(null);
 
     public static final MinecraftChannelIdentifier CHANNEL_IDENTIFIER = MinecraftChannelIdentifier.from(Constants.COMMUNICATION_CHANNEL);
 
@@ -56,6 +74,7 @@ public class MinecraftDiscordPlugin  {
     public MinecraftDiscordPlugin(ProxyServer server, Logger logger, @DataDirectory Path dataDirectory) {
         this.server = server;
         this.logger = logger;
+        this.proxyExecutor = runnable -> server.getScheduler().buildTask(this, runnable).schedule();
 
         try {
             Files.createDirectories(dataDirectory);
@@ -64,7 +83,7 @@ public class MinecraftDiscordPlugin  {
             throw new RuntimeException(e);
         }
         // TODO: Config file in dataDirectory
-        this.config = new Config(dataDirectory);
+        this.config = new Config(dataDirectory, logger);
 
         // Set up Discord bot
         discordBot = new DiscordBot(this, logger, config);
@@ -109,10 +128,16 @@ public class MinecraftDiscordPlugin  {
                         .build(),
                 new BroadcastCommand(this, config)
         );
+        commandManager.register(
+                commandManager.metaBuilder("discordstats")
+                        .plugin(this)
+                        .build(),
+                new StatsCommand(discordBot)
+        );
 
         // Set up database
         try {
-            this.database = new SQLiteDatabaseConnector(logger, config);
+            this.database = new SQLiteDatabaseConnector(logger, config, allowlist);
         } catch (SQLException e) {
             server.shutdown();
                 throw new RuntimeException(e);
@@ -121,27 +146,11 @@ public class MinecraftDiscordPlugin  {
         // Set up player platform module
         playerPlatform = new PlayerPlatform(logger);
 
-        // Check death alerts every second
-        Runnable deathAlertsRunnable = () -> {
-            long timeNow = System.currentTimeMillis();
-
-            for (Map.Entry<UUID, List<Long>> deathAlert : deathAlerts.entrySet()) {
-                UUID mcUUID = deathAlert.getKey();
-                long diedAt = deathAlert.getValue().get(0);
-                long warnAt = deathAlert.getValue().get(1);
-                if (warnAt <= timeNow) {
-                    // Send the alert!
-                    String discordID = database.getDiscordIDFor(mcUUID);
-                    discordBot.sendDeathAlert(discordID, diedAt);
-
-                    // Remove the alert from the map since we've sent it
-                    deathAlerts.remove(deathAlert.getKey(), deathAlert.getValue());
-                }
-            }
-        };
+        // Set up the chat relay workers
+        chatRelay = new ChatRelayPipeline(this, discordBot, logger, config);
 
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.scheduleAtFixedRate(deathAlertsRunnable, 1, 1, TimeUnit.SECONDS);
+        // Set up death alerts
+        deathAlerts = new DeathAlertScheduler(logger, database, discordBot);
     }
 
     @Subscribe
@@ -155,9 +164,19 @@ public class MinecraftDiscordPlugin  {
 
     @Subscribe
     public void onProxyShutdown(ProxyShutdownEvent event) {
+        // Write any queued account updates first, in case the rest of the shutdown doesn't finish
+        this.database.flushPendingWrites();
+
+        // Relay any chat messages that are still queued while the Discord bot is still running
+        this.chatRelay.shutdown();
+        // Stop the death alert timer; any alerts not sent yet stay in the database
+        this.deathAlerts.shutdown();
+
         // Send announcement synchronously so that we can make sure it sends before completely shutting down
         this.discordBot.sendAnnouncementSync(config.serverStoppedMessage);
         this.discordBot.shutdown();
+        // Release the cached database statements and connection
+        this.database.close();
     }
 
     @Subscribe
@@ -167,110 +186,161 @@ public class MinecraftDiscordPlugin  {
     }
 
     @Subscribe
-    public void onUserLoginEvent(LoginEvent event) {
-        // Check if the player is allowed to connect (i.e. whether they've linked the Discord account)
+    public EventTask onUserLoginEvent(LoginEvent event) {
         Player player = event.getPlayer();
-        String linkCode = database.checkAllowedToConnect(player.getUsername(), player.getUniqueId().toString());
-        if (linkCode != null) {
-            // Since we got a link code, they are not allowed to connect. Kick them and provide the link code.
-            event.setResult(ResultedEvent.ComponentResult.denied(
-                    Component.textOfChildren(Component.text(config.playerNeedsToLinkMessage.replace("{code}", linkCode)))
-            ));
+        UUID playerUUID = player.getUniqueId();
 
-            logger.info("Sending announcement to link...");
+        // Most logins are from linked players, which can be decided from memory without waiting on anything
+        LoginAllowlist.Decision decision = allowlist.check(playerUUID);
+        if (decision == LoginAllowlist.Decision.NOT_MEMBER) {
+            logger.warn("Player {} is linked to a Discord account that isn't in the server or doesn't have the account linked role.", player.getUsername());
+            event.setResult(ResultedEvent.ComponentResult.denied(Component.text(config.discordUserLeftServerMessage)));
+            return null;
+        }
 
-            // Post a message to the Discord server announcing that they attempted to join, with a button for easy linking
-            discordBot.sendLinkAnnouncement(config.minecraftPlayerJoinUnlinkedMessage.replace("{username}", event.getPlayer().getUsername()));
+        CompletableFuture<Void> loginCheck;
+        if (decision == LoginAllowlist.Decision.ALLOWED) {
+            // Load their account into memory so chat and private messages don't need to hit the database
+            // Setting up their session isn't database work, so it's done on a Velocity thread instead
+            loginCheck = database.cacheProfileAsync(playerUUID).thenAcceptAsync(profile -> startSession(event, profile), proxyExecutor);
+        } else {
+            // Otherwise, check if the player is allowed to connect (i.e. whether they've linked the Discord account).
+            // The database work happens on the database thread, and Velocity holds the login until it's done
+            // The follow-ups run on a Velocity thread, so the database thread only does database work
+            loginCheck = database.checkAllowedToConnectAsync(player.getUsername(), playerUUID).thenComposeAsync(linkCode -> {
+                if (linkCode != null) {
+                    // Since we got a link code, they are not allowed to connect. Kick them and provide the link code.
+                    event.setResult(ResultedEvent.ComponentResult.denied(
+                            Component.textOfChildren(Component.text(config.playerNeedsToLinkMessage.render(linkCode)))
+                    ));
+
+                    logger.info("Sending announcement to link...");
+
+                    // Post a message to the Discord server announcing that they attempted to join, with a button for easy linking
+                    discordBot.sendLinkAnnouncement(config.minecraftPlayerJoinUnlinkedMessage.render(player.getUsername()));
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                return database.cacheProfileAsync(playerUUID).thenAcceptAsync(profile -> {
+                    // If they're in the database, make sure they're still a member of the Discord server
+                    String discordID = profile == null ? null : profile.getLinkedDiscordId();
+                    if (discordID == null || !discordBot.isMemberLinkedInServer(discordID)) {
+                        // Kick them with the appropriate message
+                        event.setResult(ResultedEvent.ComponentResult.denied(Component.text(config.discordUserLeftServerMessage)));
+                        return;
+                    }
+                    startSession(event, profile);
+                }, proxyExecutor);
+            }, proxyExecutor);
+        }
+
+        return EventTask.resumeWhenComplete(loginCheck.exceptionally(throwable -> {
+            // Don't let anyone in if we weren't able to check their account
+            logger.error("Unable to check whether player {} is allowed to connect: {}", playerUUID, throwable.toString());
+            event.setResult(ResultedEvent.ComponentResult.denied(Component.text("Error checking your account. Contact server administrator.")));
+            return null;
+        }));
+    }
+
+    // Sets up the session for a player who's been allowed to join
+    private void startSession(LoginEvent event, AccountProfile profile) {
+        if (profile == null) {
+            // Their account has to exist for them to have been allowed in, so this shouldn't happen
+            event.setResult(ResultedEvent.ComponentResult.denied(Component.text("Error checking your account. Contact server administrator.")));
             return;
         }
 
-        // If they're in the database, make sure they're still a member of the Discord server
-        String discordID = database.getDiscordIDFor(player.getUniqueId());
-        if (!discordBot.isMemberLinkedInServer(discordID)) {
-            // Kick them with the appropriate message
-            event.setResult(ResultedEvent.ComponentResult.denied(Component.text(config.discordUserLeftServerMessage)));
+        // Work out everything the other event handlers need to know about them
+        Player player = event.getPlayer();
+        UUID playerUUID = player.getUniqueId();
+        String headUrl = String.format(config.minecraftHeadURL, playerUUID.toString().replaceAll("-", ""), player.getUsername());
+        String chatHeadUrl = String.format("https://heads.discordsrv.com/head.png?texture=%s&uuid=%s&name=%s&overlay", "", playerUUID.toString().replaceAll("-", ""), player.getUsername());
+        PlayerSession session = new PlayerSession(playerUUID, player.getUsername(), headUrl, chatHeadUrl, profile, playerPlatform.getPlayerPlatform(player));
+        session.refreshDiscordDetails(discordBot);
+        sessions.add(session);
+
+        // If they died and left before respawning, pick their death alert back up
+        deathAlerts.resume(playerUUID);
+    }
+
+    @Subscribe
+    public void onClientBrand(PlayerClientBrandEvent event) {
+        // Java clients send their brand after logging in, so add it to the platform we detected then
+        PlayerSession session = sessions.get(event.getPlayer().getUniqueId());
+        if (session != null && session.platform.platform() == PlayerPlatform.Platform.JAVA_OR_UNKNOWN) {
+            session.platform = session.platform.withClientBrand(event.getBrand());
         }
     }
 
     @Subscribe
     public void onConnect(ServerConnectedEvent event) {
         // Send a message to all players and to Discord announcing that the player joined/switched servers
-        Player player = event.getPlayer();
-        String mcName = player.getUsername();
-        String mcIcon = String.format(config.minecraftHeadURL, player.getUniqueId().toString().replaceAll("-", ""), mcName);
+        PlayerSession session = sessions.get(event.getPlayer().getUniqueId());
+        if (session == null) {
+            logger.warn("Player {} connected to a server without a session!", event.getPlayer().getUsername());
+            return;
+        }
+        String mcName = session.username;
         String message;
         Color discordColor;
 
         // If they were already on a different server, show a "server switch" message instead
         if (event.getPreviousServer().isPresent()) {
-            message = config.minecraftPlayerSwitchServersMessage
-                    .replace("{username}", mcName)
-                    .replace("{new_server}", event.getServer().getServerInfo().getName())
-                    .replace("{old_server}", event.getPreviousServer().get().getServerInfo().getName());
+            message = config.minecraftPlayerSwitchServersMessage.render(
+                    mcName,
+                    event.getServer().getServerInfo().getName(),
+                    event.getPreviousServer().get().getServerInfo().getName()
+            );
             discordColor = Color.blue;
         } else {
-            message = config.minecraftPlayerJoinMessage.replace("{username}", mcName);
+            message = config.minecraftPlayerJoinMessage.render(mcName);
             discordColor = Color.green;
         }
-        sendMessageToAll(message);
+        sendSystemMessageToAll(message);
 
-        discordBot.sendAnnouncement(discordColor, message, mcName, mcIcon, playerPlatform.getPlayerPlatform(player));
+        discordBot.sendAnnouncement(discordColor, message, mcName, session.headUrl, session.platform);
     }
 
     @Subscribe
     public void onDisconnect(DisconnectEvent event) {
+        // Drop their cached account data and session, whether or not they finished logging in
+        Player player = event.getPlayer();
+        database.releaseProfile(player.getUniqueId());
+        PlayerSession session = sessions.remove(player.getUniqueId());
+        // Don't send them a death alert after they've left the game, since they probably don't want one. It's kept
+        // for when they come back, though, in case they still haven't respawned.
+        deathAlerts.suspend(player.getUniqueId());
+
         // If the player wasn't connected yet, don't send a disconnect announcement
-        if (event.getLoginStatus() != DisconnectEvent.LoginStatus.SUCCESSFUL_LOGIN)
+        if (event.getLoginStatus() != DisconnectEvent.LoginStatus.SUCCESSFUL_LOGIN || session == null)
             return;
 
         // Send a message to all players and to Discord announcing that the player left
-        Player player = event.getPlayer();
-        String mcName = player.getUsername();
-        String mcIcon = String.format(config.minecraftHeadURL, player.getUniqueId().toString().replaceAll("-",""), mcName);
-        String message = config.minecraftPlayerLeaveMessage.replace("{username}", mcName);
-        sendMessageToAll(message);
-
-        discordBot.sendAnnouncement(Color.red, message, mcName, mcIcon, playerPlatform.getPlayerPlatform(player));
+        String message = config.minecraftPlayerLeaveMessage.render(session.username);
+        sendSystemMessageToAll(message);
 
-        // Remove them from the list of players to send death alerts to, if they're in there, as
-        // otherwise they'll get a notification after they've left the game, which they probably
-        // don't want
-        deathAlerts.remove(player.getUniqueId());
+        discordBot.sendAnnouncement(Color.red, message, session.username, session.headUrl, session.platform);
     }
 
     @Subscribe(order = PostOrder.FIRST)
     public void onPlayerChat(PlayerChatEvent event) {
-        Player player = event.getPlayer();
-        String message = event.getMessage();
-        String playerName = player.getUsername();
-        String playerUuid = player.getUniqueId().toString();
+        // Prevent forwarding to the backend server
+        event.setResult(PlayerChatEvent.ChatResult.denied());
 
+        Player player = event.getPlayer();
+        PlayerSession session = sessions.get(player.getUniqueId());
+        if (session == null) {
+            logger.warn("Dropping chat message from player {} without a session!", player.getUsername());
+            return;
+        }
         String serverName = "no server";
         Optional<ServerConnection> server = player.getCurrentServer();
         if (server.isPresent()) {
             serverName = server.get().getServerInfo().getName();
         }
 
-        // Send message to all Minecraft clients, but not the backend server(s)
-        sendChatMessage(new ChatMessage(playerUuid, message, serverName, false));
-
-        // Get player head URL
-        String mcIcon = String.format("https://heads.discordsrv.com/head.png?texture=%s&uuid=%s&name=%s&overlay", "", playerUuid.replaceAll("-",""), playerName);
-
-        // Get linked Discord username and icon
-        String discordUser = database.getDiscordIDFor(player.getUniqueId());
-        String discordName = discordBot.getUsernameFromID(discordUser);
-        String discordIcon = discordBot.getUserIconFromID(discordUser);
-
-        // Replace @mentions with <@123456789012345678> mentions
-        // TODO: This should probably have a config option and/or be configurable per-user and/or per-Discord-account
-        message = discordBot.replaceMentions(message);
-
-        // Send message to Discord
-        discordBot.chatWebhookSendMessage(discordName, discordIcon, playerName, mcIcon, null, null, null, message, null, null);
-
-        // Prevent forwarding to the backend server
-        event.setResult(PlayerChatEvent.ChatResult.denied());
+        // Hand the message to the relay workers, which send it in-game and to Discord
+        chatRelay.capture(new ChatRelayPipeline.CapturedChat(session, serverName, event.getMessage()));
     }
 
     @Subscribe
@@ -281,8 +351,13 @@ public class MinecraftDiscordPlugin  {
         }
 
         Player player = backend.getPlayer();
-        String playerName = player.getUsername();
-        String playerIcon = String.format(config.minecraftHeadURL, player.getUniqueId().toString().replaceAll("-", ""), playerName);
+        PlayerSession session = sessions.get(player.getUniqueId());
+        if (session == null) {
+            logger.warn("Ignoring plugin message for player {} without a session!", player.getUsername());
+            return;
+        }
+        String playerName = session.username;
+        String playerIcon = session.headUrl;
 
         ByteArrayDataInput buffer = event.dataAsDataStream();
         String eventType = buffer.readUTF();
@@ -292,7 +367,7 @@ public class MinecraftDiscordPlugin  {
                 String message = buffer.readUTF();
                 discordBot.sendAnnouncement(new Color(0xff7f00), message, playerName, playerIcon, null);
 
-                double delaySeconds = database.getDeathAlertDelay(player.getUniqueId());
+                double delaySeconds = session.profile.deathAlertDelay;
                 if (delaySeconds <= 0) break; // 0 or negative = disabled
 
                 long delayMillis = (long) (delaySeconds * 1000);
@@ -300,13 +375,13 @@ public class MinecraftDiscordPlugin  {
                 long diedAtTime = System.currentTimeMillis();
                 long warningTime = diedAtTime + delayMillis;
 
-                // Add the player to the list of alerts, and store both the time they died, and the time to warn them
-                deathAlerts.put(player.getUniqueId(), List.of(diedAtTime, warningTime));
+                // Schedule the alert, with both the time they died, and the time to warn them
+                deathAlerts.schedule(player.getUniqueId(), diedAtTime, warningTime);
                 break;
             case "PlayerRespawn":
                 logger.warn("Player respawned! UUID: {}", player.getUniqueId());
-                // Remove the player from the list so they aren't alerted
-                deathAlerts.remove(player.getUniqueId());
+                // Cancel their alert so they aren't alerted
+                deathAlerts.cancel(player.getUniqueId());
                 break;
             case "PlayerAdvancement":
                 String advancementType = buffer.readUTF();
@@ -327,97 +402,102 @@ public class MinecraftDiscordPlugin  {
     }
 
     void sendChatMessage(ChatMessage message) {
-        String mcName;
-        UUID mcUUID;
-        String discName;
-        String discId;
-
         if (message.isDiscordMessage) {
             // If it's coming from Discord, treat the "user" field as a Discord account ID
-            discId = message.user;
-            discName = discordBot.getUsernameFromID(discId);
-
-            // Look for a linked Minecraft account
-            mcUUID = database.getAccountFromDiscord(message.user);
-            if (mcUUID != null) {
-                mcName = database.getMinecraftNicknameFor(mcUUID);
-                if (mcName == null) {
-                    // We should never get here, but if we do, check if a player with this UUID is currently online
-                    Optional<Player> potentialPlayer = server.getPlayer(mcUUID);
-                    if (potentialPlayer.isPresent()) {
-                        // Since they're online, add their username to the HashMap and send the message successfully, but still log a warning in the console
-                        mcName = potentialPlayer.get().getUsername();
-                        database.updateMinecraftUsername(mcUUID, mcName);
-                        logger.warn("WARNING: Message '{}' sent by Discord user with linked Minecraft account (UUID '{}'), but no Minecraft username was found in the database! However, the player is online with username '{}', so was able to use that. This should never happen!", message.message, message.user, mcName);
-                    } else {
-                        logger.error("ERROR: Message '{}' sent by Discord user with linked Minecraft account (UUID '{}'), but no Minecraft username was found!", message.message, message.user);
-                    }
-                    return;
-                }
-            } else {
-                mcName = config.noMinecraftAccountPlaceholder;
+            String discName = discordBot.getUsernameFromID(message.user);
+
+            // Look for a linked Minecraft account on a database thread rather than the JDA event thread. The lookups
+            // can finish out of order, so each message waits for the previous one before it's relayed.
+            CompletableFuture<String> mcName = database.getAccountFromDiscordAsync(message.user)
+                    .thenApply(mcUUID -> getMinecraftNameForDiscordMessage(message, mcUUID));
+            synchronized (this) {
+                discordChatRelay = discordChatRelay.thenCombine(mcName, (previous, name) -> {
+                    if (name != null) relayChatMessage(message, name, discName);
+                    return (Void) null;
+                }).exceptionally(throwable -> {
+                    logger.error("Unable to relay Discord message from user {}: {}", message.user, throwable.toString());
+                    return null;
+                });
             }
-        } else {
-            // If it's coming from Minecraft, treat the "user" field as a Minecraft account UUID
-            mcUUID = UUID.fromString(message.user);
+            return;
+        }
+
+        // If it's coming from Minecraft, treat the "user" field as a Minecraft account UUID
+        PlayerSession session = sessions.get(UUID.fromString(message.user));
+        if (session == null) {
+            // We should never get here
+            logger.error("ERROR: Message '{}' sent by Minecraft player with UUID '{}', but no such player is online!", message.message, message.user);
+            return;
+        }
+        relayChatMessage(message, session.username, session.discordName);
+    }
+
+    // Returns the name to show for the sender of a Discord message, or null if the message shouldn't be relayed
+    private String getMinecraftNameForDiscordMessage(ChatMessage message, UUID mcUUID) {
+        if (mcUUID == null) return config.noMinecraftAccountPlaceholder;
+
+        String mcName = database.getMinecraftNicknameFor(mcUUID);
+        if (mcName == null) {
+            // We should never get here, but if we do, check if a player with this UUID is currently online
             Optional<Player> potentialPlayer = server.getPlayer(mcUUID);
-            if (potentialPlayer.isEmpty()) {
-                // We should never get here
-                logger.error("ERROR: Message '{}' sent by Minecraft player with UUID '{}', but no such player is online!", message.message, message.user);
-                return;
-            } else {
+            if (potentialPlayer.isPresent()) {
+                // Since they're online, add their username to the HashMap and send the message successfully, but still log a warning in the console
                 mcName = potentialPlayer.get().getUsername();
+                database.updateMinecraftUsername(mcUUID, mcName);
+                logger.warn("WARNING: Message '{}' sent by Discord user with linked Minecraft account (UUID '{}'), but no Minecraft username was found in the database! However, the player is online with username '{}', so was able to use that. This should never happen!", message.message, message.user, mcName);
+            } else {
+                logger.error("ERROR: Message '{}' sent by Discord user with linked Minecraft account (UUID '{}'), but no Minecraft username was found!", message.message, message.user);
             }
-
-            discId = database.getDiscordIDFor(mcUUID);
-            discName = discordBot.getUsernameFromID(discId);
+            return null;
         }
+        return mcName;
+    }
+
+    private void relayChatMessage(ChatMessage message, String mcName, String discName) {
+        // Prevent player from using color codes or escape sequences, and make URLs clickable
+        String playerMessage = ChatSanitizer.sanitize(message.message);
 
-        String playerMessage = message.message
-            // Prevent player from using color codes or escape sequences
-            .replace("\\", "\\\\").replace("<", "\\<")
-            // Replace URLs with clickable links
-            .replaceAll(
-                // URL match regex from https://stackoverflow.com/a/3809435
-                "(https?://(?:www\\.)?[-a-zA-Z0-9@:%._+~#=]{1,256}\\.[a-zA-Z0-9()]{1,6}\\b[-a-zA-Z0-9()@:%_+.~#?&/=]*)",
-                // Replacement to make it clickable
-                "<u><click:open_url:'$1'>$1</click><u>"
-                );
+//        String playerHeadUrl = String.format(config.minecraftHeadURL, mcUUID, mcName);
+//        String discordAvatarUrl = discordBot.getUserIconFromID(discId);
 
         String finalMessage;
         if (message.isDiscordMessage) {
+            MessageTemplate template;
             if (message.isEditedMessage) {
                 // If it's edited and there's an edited message template, use that
                 if (config.discordMessageEditTemplate != null)
-                    finalMessage = config.discordMessageEditTemplate;
+                    template = config.discordMessageEditTemplate;
                     // If it's edited and there's not an edited message template, don't send any message
                 else
                     return;
             } else {
-                finalMessage = config.discordMessageTemplate;
+                template = config.discordMessageTemplate;
             }
+            finalMessage = template.render(mcName, discName, playerMessage);
         } else {
-            finalMessage = config.minecraftMessageTemplate.replace("{server}", message.server);
+            finalMessage = config.minecraftMessageTemplate.render(message.server, mcName, discName, playerMessage);
         }
 
-//        String playerHeadUrl = String.format(config.minecraftHeadURL, mcUUID, mcName);
-//        String discordAvatarUrl = discordBot.getUserIconFromID(discId);
-
-        finalMessage = finalMessage
-                .replace("{minecraftUsername}", mcName)
-                .replace("{discordUsername}", discName)
-                .replace("{message}", playerMessage)
-//                .replace("{minecraft_head}", new ChattableImage(logger, playerHeadUrl).toString())
-//                .replace("{discord_avatar}", new ChattableImage(logger, discordAvatarUrl).toString())
-        ;
-
         sendMessageToAll(finalMessage);
     }
 
     void sendMessageToAll(String message) {
-        for (Player player : server.getAllPlayers()) {
-            player.sendRichMessage(message);
+        sendMessageToAll(MiniMessage.miniMessage().deserialize(message));
+    }
+
+    // Same as sendMessageToAll(), but keeps the parsed message around in case the same one is sent again soon
+    void sendSystemMessageToAll(String message) {
+        Component component = systemMessages.get(message);
+        if (component == null) {
+            component = MiniMessage.miniMessage().deserialize(message);
+            systemMessages.put(message, component);
         }
+        sendMessageToAll(component);
+    }
+
+    void sendMessageToAll(Component message) {
+        // The message is only parsed once, and the same Component is sent to every player
+        Audience.audience(server.getAllPlayers()).sendMessage(message);
     }
 
     public void sendPrivateMessage(UUID sourceAccount, UUID destinationAccount, String message) {
@@ -430,11 +510,7 @@ public class MinecraftDiscordPlugin  {
         boolean playerOnline = destinationPlayerOptional.isPresent();
         if (playerOnline) {
             Player destinationPlayer = destinationPlayerOptional.get();
-            destinationPlayer.sendRichMessage(config.minecraftPrivateMessageFormat
-                    .replace("{sender}", sourceName)
-                    .replace("{recipient}", destinationName)
-                    .replace("{message}", message)
-            );
+            destinationPlayer.sendRichMessage(config.minecraftPrivateMessageFormat.render(sourceName, destinationName, message));
         }
 
         // Get linked Discord account IDs for both source and destination
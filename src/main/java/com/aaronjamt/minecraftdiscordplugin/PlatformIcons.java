@@ -0,0 +1,89 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import club.minnced.discord.webhook.receive.ReadonlyAttachment;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import okhttp3.HttpUrl;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The platform icons shown in the footer of announcements. Each icon is read from the jar once, at startup. Once an
+// icon has been uploaded to Discord as an attachment, its CDN URL is reused until it expires, so most announcements
+// don't need to upload anything.
+class PlatformIcons {
+    // Upload the icon again this long before its URL expires, so it doesn't break right after being sent
+    private static final long EXPIRY_MARGIN_SECONDS = 60 * 60;
+    // How long to reuse a URL that doesn't say when it expires
+    private static final long DEFAULT_URL_LIFETIME_SECONDS = 24 * 60 * 60;
+
+    private record CachedUrl(String url, long expiresAt) {
+    }
+
+    private final Logger logger;
+    // Keyed by icon path, since some platforms share an icon
+    private final Map<String, byte[]> icons;
+    private final Map<String, CachedUrl> urls = new ConcurrentHashMap<>();
+
+    PlatformIcons(Logger logger) {
+        this.logger = logger;
+
+        Map<String, byte[]> icons = new HashMap<>();
+        for (PlayerPlatform.Platform platform : PlayerPlatform.Platform.values()) {
+            String path = platform.getIconPath();
+            if (icons.containsKey(path)) continue;
+
+            try (InputStream iconInputStream = getClass().getResourceAsStream(path)) {
+                if (iconInputStream == null) {
+                    logger.warn("Missing platform icon '{}', announcements from {} players won't show one.", path, platform);
+                    continue;
+                }
+                icons.put(path, iconInputStream.readAllBytes());
+            } catch (IOException e) {
+                logger.warn("Unable to read platform icon '{}': {}", path, e.getMessage());
+            }
+        }
+        this.icons = Map.copyOf(icons);
+    }
+
+    // Returns the icon's image data, or null if it couldn't be loaded. The array must not be modified.
+    byte[] getIcon(PlayerPlatform.PlatformInfo platform) {
+        return icons.get(platform.iconPath());
+    }
+
+    // Returns a URL for the icon that won't expire soon, or null if it needs to be uploaded
+    String getUrl(PlayerPlatform.PlatformInfo platform) {
+        CachedUrl cached = urls.get(platform.iconPath());
+        if (cached == null || nowSeconds() >= cached.expiresAt() - EXPIRY_MARGIN_SECONDS) return null;
+        return cached.url();
+    }
+
+    // Remembers the URL of the icon if the message uploaded it
+    void recordUpload(PlayerPlatform.PlatformInfo platform, ReadonlyMessage message) {
+        if (message.getAttachments().isEmpty()) return;
+
+        ReadonlyAttachment attachment = message.getAttachments().get(0);
+        urls.put(platform.iconPath(), new CachedUrl(attachment.getUrl(), getExpiry(attachment.getUrl())));
+    }
+
+    // Discord's attachment URLs are signed, with the expiry time (in hex Unix seconds) in the "ex" parameter
+    private long getExpiry(String url) {
+        HttpUrl parsedUrl = HttpUrl.parse(url);
+        String expiry = parsedUrl == null ? null : parsedUrl.queryParameter("ex");
+        if (expiry != null) {
+            try {
+                return Long.parseLong(expiry, 16);
+            } catch (NumberFormatException e) {
+                logger.warn("Unable to parse expiry time of attachment URL '{}'", url);
+            }
+        }
+        return nowSeconds() + DEFAULT_URL_LIFETIME_SECONDS;
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
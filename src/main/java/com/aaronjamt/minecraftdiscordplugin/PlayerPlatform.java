@@ -42,7 +42,9 @@ public class PlayerPlatform {
         } catch (NoClassDefFoundError ignored) {}
     }
 
-    public Platform getPlayerPlatform(Player player) {
+    // Detects the player's platform. This queries the cross-platform plugins, so it's meant to be called once per
+    // connection (at login), with the result kept for the rest of the session.
+    public PlatformInfo getPlayerPlatform(Player player) {
         UUID playerID = player.getUniqueId();
 
         // Get Minecraft version (used for Java and EaglerCraft players)
@@ -65,9 +67,9 @@ public class PlayerPlatform {
                     BedrockPlatform platform = connection.platform();
                     if (platform == BedrockPlatform.UNKNOWN) {
                         logger.warn("Player {} is a Geyser player, but was unable to find exact player platform.", playerID);
-                        return Platform.BEDROCK_GENERIC;
+                        return new PlatformInfo(Platform.BEDROCK_GENERIC, null, null);
                     } else
-                        return Platform.PlatformByBedrockName(platform.toString()).setDescriptors(connection.version());
+                        return new PlatformInfo(Platform.PlatformByBedrockName(platform.toString()), connection.version(), null);
                 }
             } else logger.debug("Player {} is not a Geyser player.", playerID);
         } else logger.debug("Not checking whether player {} is a Geyser player: Geyser not installed!", playerID);
@@ -80,31 +82,43 @@ public class PlayerPlatform {
 
                 if (platform == DeviceOs.UNKNOWN) {
                     logger.warn("Player {} is a Floodgate player, but was unable to find exact player platform.", playerID);
-                    return Platform.BEDROCK_GENERIC;
+                    return new PlatformInfo(Platform.BEDROCK_GENERIC, null, null);
                 } else
-                    return Platform.PlatformByBedrockName(platform.toString()).setDescriptors(floodgatePlayer.getVersion());
+                    return new PlatformInfo(Platform.PlatformByBedrockName(platform.toString()), floodgatePlayer.getVersion(), null);
             } else logger.debug("Player {} is not a Floodgate player.", playerID);
         } else logger.debug("Not checking whether player {} is a Floodgate player: Floodgate not installed!", playerID);
 
         if (hasEaglerCraft) {
             if (EaglerXVelocityAPIHelper.getEaglerHandle(player) != null) {
                 logger.debug("Player {} is an EaglerCraft player!", playerID);
-                return Platform.EAGLER.setDescriptors(version);
+                return new PlatformInfo(Platform.EAGLER, version, null);
             } else logger.debug("Player {} is not a EaglerCraft player.", playerID);
         } else logger.debug("Not checking whether player {} is a EaglerCraft player: EaglerCraft not installed!", playerID);
 
-        // If the player isn't any of the above, assume they're on Java
-        Platform platform = Platform.JAVA_OR_UNKNOWN;
+        // If the player isn't any of the above, assume they're on Java, and add any client branding
+        return new PlatformInfo(Platform.JAVA_OR_UNKNOWN, version, player.getClientBrand());
+    }
 
-        // Add any client branding
-        String clientBrand = player.getClientBrand();
-        if (clientBrand != null) {
-            clientBrand = String.format("(%s)", clientBrand);
-        } else {
-            clientBrand = "";
+    // What we know about a player's platform. Unlike the Platform constants, which are shared by every player on that
+    // platform, each player gets their own.
+    public record PlatformInfo(Platform platform, String version, String clientBrand) {
+        // Java clients send their brand after logging in, so it's filled in later
+        public PlatformInfo withClientBrand(String clientBrand) {
+            return new PlatformInfo(platform, version, clientBrand);
         }
 
-        return platform.setDescriptors(version, clientBrand);
+        // Path of the icon resource for this platform
+        public String iconPath() {
+            return platform.getIconPath();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(platform.toString());
+            if (version != null) builder.append(' ').append(version);
+            if (clientBrand != null) builder.append(" (").append(clientBrand).append(')');
+            return builder.toString();
+        }
     }
 
     // TODO: These emojis don't seem to render properly, at least in my limited testing of "trying it once and giving up". Need to fix!
@@ -155,8 +169,6 @@ public class PlayerPlatform {
         private final String humanReadableName;
         private final String iconName;
 
-        private String displayName;
-
         Platform(String bedrockName, String humanReadableName, String iconName) {
             this.bedrockName = bedrockName;
             this.humanReadableName = humanReadableName == null ? bedrockName : humanReadableName;
@@ -170,18 +182,13 @@ public class PlayerPlatform {
             return BEDROCK_GENERIC;
         }
 
-        public Platform setDescriptors(String... descriptors) {
-            displayName = humanReadableName + " " + String.join(" ", descriptors);
-            return this; // For chaining
-        }
-
         public String getIconPath() {
             return String.format("/platform-icons/%s.png", iconName);
         }
 
         @Override
         public String toString() {
-            return displayName == null ? humanReadableName : displayName;
+            return humanReadableName;
         }
     }
 }
@@ -0,0 +1,44 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import net.dv8tion.jda.api.entities.Member;
+
+import java.util.UUID;
+
+// Everything the event handlers need to know about a connected player, worked out once when they log in instead of
+// on every event. The Discord details are refreshed whenever Discord tells us the member changed.
+class PlayerSession {
+    final UUID account;
+    final String username;
+    // Player head image, for Discord announcements
+    final String headUrl;
+    // Player head image, for chat relayed to Discord
+    final String chatHeadUrl;
+    // Their account, including preferences. This is the same profile the database keeps cached while they're online,
+    // so changes to it (e.g. from /discord) show up here too.
+    final AccountProfile profile;
+
+    volatile String discordName;
+    volatile String discordAvatarUrl;
+    volatile PlayerPlatform.PlatformInfo platform;
+
+    PlayerSession(UUID account, String username, String headUrl, String chatHeadUrl, AccountProfile profile, PlayerPlatform.PlatformInfo platform) {
+        this.account = account;
+        this.username = username;
+        this.headUrl = headUrl;
+        this.chatHeadUrl = chatHeadUrl;
+        this.profile = profile;
+        this.platform = platform;
+    }
+
+    String getDiscordId() {
+        return profile.getLinkedDiscordId();
+    }
+
+    // Updates the Discord name and avatar from the member's current details
+    void refreshDiscordDetails(DiscordBot discordBot) {
+        Member member = discordBot.getMemberFromID(getDiscordId());
+        if (member == null) return;
+        discordName = member.getEffectiveName();
+        discordAvatarUrl = member.getEffectiveAvatarUrl();
+    }
+}
@@ -0,0 +1,31 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// The sessions of the players currently connected to the proxy, from login until disconnect
+class PlayerSessions {
+    private final Map<UUID, PlayerSession> sessions = new ConcurrentHashMap<>();
+
+    void add(PlayerSession session) {
+        sessions.put(session.account, session);
+    }
+
+    // Returns the player's session, or null if they aren't logged in
+    PlayerSession get(UUID account) {
+        return sessions.get(account);
+    }
+
+    PlayerSession remove(UUID account) {
+        return sessions.remove(account);
+    }
+
+    // Calls the action for the session of each player linked to the Discord account (normally at most one)
+    void forDiscordAccount(String discordId, Consumer<PlayerSession> action) {
+        for (PlayerSession session : sessions.values()) {
+            if (discordId.equals(session.getDiscordId())) action.accept(session);
+        }
+    }
+}
@@ -6,6 +6,9 @@ import com.velocitypowered.api.proxy.Player;
 import java.util.*;
 
 public class PrivateMessageCommand implements SimpleCommand {
+    // Don't send the client more names than it can reasonably show
+    private static final int MAX_SUGGESTIONS = 100;
+
     protected final MinecraftDiscordPlugin plugin;
     private final Config config;
 
@@ -48,11 +51,7 @@ public class PrivateMessageCommand implements SimpleCommand {
         // Send message to source user, if not the same as the destination user
         // This prevents sending the message twice if a user DMs themselves
         if (!sourceName.equals(destinationName)) {
-            source.sendRichMessage(config.minecraftPrivateMessageFormat
-                    .replace("{sender}", sourceName)
-                    .replace("{recipient}", destinationName)
-                    .replace("{message}", message)
-            );
+            source.sendRichMessage(config.minecraftPrivateMessageFormat.render(sourceName, destinationName, message));
         }
 
         // Update sender's reply user to the current destination (for the reply command)
@@ -71,18 +70,10 @@ public class PrivateMessageCommand implements SimpleCommand {
         // For anything after, make no suggestions
         if (invocation.arguments().length > 1) return List.of();
 
-        // Get users that allow being messaged via Discord while offline
-        List<String> availableUsers = plugin.database.getAllUsersWithOfflineMessaging();
-        // Add all users that are currently online, if they aren't already in the list
-        plugin.server.getAllPlayers().forEach(player -> {
-            String username = player.getUsername();
-            if (!availableUsers.contains(username))
-                availableUsers.add(username);
-        });
-        // Sort the list alphabetically
-        availableUsers.sort(String::compareToIgnoreCase);
-
-        return availableUsers;
+        // Get online users and users that allow being messaged via Discord while offline, whose names start with what
+        // has been typed so far (sorted alphabetically)
+        String prefix = invocation.arguments().length == 0 ? "" : invocation.arguments()[0];
+        return plugin.database.findMessageableNames(prefix, MAX_SUGGESTIONS);
     }
 }
 
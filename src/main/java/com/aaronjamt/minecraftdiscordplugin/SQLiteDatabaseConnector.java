@@ -4,12 +4,24 @@ import org.slf4j.Logger;
 
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.sql.*;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteDataSource;
 
 import javax.annotation.Nonnull;
@@ -17,10 +29,105 @@ import javax.annotation.Nonnull;
 public class SQLiteDatabaseConnector {
     private final Logger logger;
     private final Config config;
-    private final Connection connection;
+
+    // The database is opened in WAL mode so that reads don't have to wait for writes (or vice versa).
+    // All writes go through the single writer connection, while reads are spread across a small pool of read-only
+    // connections so that lookups from Velocity and JDA threads can run in parallel.
+    private final DatabaseConnection writeConnection;
+    private final BlockingQueue<DatabaseConnection> readConnections;
+    private final int readConnectionCount;
+    private final ExecutorService readExecutor;
 
     private final SecureRandom random = new SecureRandom();
 
+    // Pending link codes are kept in memory (as well as in the linkCodes table) so that players who keep reconnecting
+    // before linking get their existing code back without a database write
+    private final LinkCodeManager linkCodes = new LinkCodeManager();
+
+    // Senders of recently relayed Discord DMs, so that replies to them can be routed without reading the database
+    private static final int RECENT_DISCORD_DMS = 1024;
+    private final LruCache<String, String> recentDiscordDMSenders = new LruCache<>(RECENT_DISCORD_DMS);
+
+    // Names that can be sent a private message, for /msg tab-completion. Online players are added and removed along
+    // with their pinned profiles, and offline messaging changes are applied as they're made.
+    private final MessageableNameIndex messageableNames = new MessageableNameIndex();
+
+    // Every known username and nickname, so that name lookups for players that don't exist (typos in /msg, for
+    // example) can return without querying the database
+    private final KnownNameFilter knownNames = new KnownNameFilter();
+
+    // Which accounts are linked to which Discord accounts, for the login gate. Loaded at startup and updated whenever
+    // an account is linked.
+    private final LoginAllowlist allowlist;
+
+    // Account rows are cached in memory so that the chat and private message paths don't need to query the database.
+    // Preference updates are applied to the cached profile immediately and written to the database in the background.
+    // Cache evictions are queued on the same thread so that an evicted profile can't be reloaded before its pending
+    // writes have reached the database.
+    private static final long PROFILE_IDLE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private final AccountProfileCache profiles = new AccountProfileCache();
+
+    // Background column updates are coalesced and written in batches, so that busy /msg traffic results in one
+    // transaction (and one fsync) every flush interval rather than one per update
+    private final WriteCoalescer pendingWrites;
+    // Held while flushing, separately from the coalescer's own lock so that queueing a write never waits on the disk
+    private final Object flushLock = new Object();
+
+    // All background database writes (and the *Async methods that write, write-behind updates and cache maintenance) run
+    // on this single thread, so that event handlers on Velocity and JDA threads never have to wait on the disk.
+    // Asynchronous reads run on the read executor instead, which has one thread per read connection.
+    private final ScheduledExecutorService databaseExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MinecraftDiscordPlugin Database Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Prepared statements are cached per connection and reused rather than being re-parsed by SQLite for every lookup.
+    // The column statements are keyed by (search column, target column, operation) since the column names have to
+    // be injected into the SQL string, while the fixed queries are keyed by their Query.
+    private enum StatementOperation {
+        SELECT,
+        UPDATE
+    }
+
+    private record StatementKey(DatabaseColumns searchColumn, DatabaseColumns targetColumn, StatementOperation operation) {}
+
+    private enum Query {
+        SELECT_LINK_STATUS("SELECT discordId FROM accounts WHERE minecraftUser = ? AND minecraftUUID = ?"),
+        INSERT_ACCOUNT("INSERT INTO accounts (minecraftUser, minecraftName, minecraftUUID) VALUES (?, ?, ?)"),
+        // The minecraftUUID column is unique, so this also replaces any previous code for the same account
+        UPSERT_LINK_CODE("INSERT OR REPLACE INTO linkCodes (code, minecraftUUID, expiresAt) VALUES (?, ?, ?)"),
+        SELECT_LINK_CODES("SELECT code, minecraftUUID, expiresAt FROM linkCodes WHERE expiresAt > ?"),
+        DELETE_LINK_CODE("DELETE FROM linkCodes WHERE code = ?"),
+        DELETE_EXPIRED_LINK_CODES("DELETE FROM linkCodes WHERE expiresAt <= ?"),
+        LINK_ACCOUNT("UPDATE accounts SET discordId = ? WHERE minecraftUUID = ?"),
+        SELECT_ALL_NAMES("SELECT minecraftUser, minecraftName FROM accounts;"),
+        SELECT_LINKED_ACCOUNTS("SELECT minecraftUUID, discordId FROM accounts WHERE discordId IS NOT NULL;"),
+        SELECT_OFFLINE_MESSAGING_ACCOUNTS("SELECT minecraftUUID, minecraftUser FROM accounts WHERE offlineDiscordDMs = 1;"),
+        INSERT_DISCORD_DM("INSERT INTO discordDMs (messageID, senderID, recipientID, createdAt) VALUES (?, ?, ?, ?)"),
+        // Deletes in bounded batches so that pruning a large backlog doesn't hold the write lock for long
+        PRUNE_DISCORD_DMS("DELETE FROM discordDMs WHERE rowid IN (SELECT rowid FROM discordDMs WHERE createdAt < ? LIMIT ?)"),
+        SELECT_DISCORD_DM_SENDER("SELECT senderID FROM discordDMs WHERE messageID = ?;"),
+        // The minecraftUUID column is the primary key, so this also replaces any previous alert for the same account
+        UPSERT_DEATH_ALERT("INSERT OR REPLACE INTO deathAlerts (minecraftUUID, diedAt, alertAt) VALUES (?, ?, ?)"),
+        SELECT_DEATH_ALERT("SELECT diedAt, alertAt FROM deathAlerts WHERE minecraftUUID = ?"),
+        DELETE_DEATH_ALERT("DELETE FROM deathAlerts WHERE minecraftUUID = ?"),
+        DELETE_STALE_DEATH_ALERTS("DELETE FROM deathAlerts WHERE diedAt < ?"),
+        SELECT_PROFILE_BY_UUID("SELECT * FROM accounts WHERE minecraftUUID = ?;"),
+        SELECT_PROFILE_BY_DISCORD("SELECT * FROM accounts WHERE discordId = ?;");
+
+        private final String sql;
+
+        Query(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    @FunctionalInterface
+    private interface DatabaseOperation<T> {
+        T run(DatabaseConnection connection) throws SQLException;
+    }
+
     enum DatabaseColumns {
         minecraftUUID,
         minecraftUser,
@@ -32,108 +139,531 @@ public class SQLiteDatabaseConnector {
         msgReplyUser
     }
 
-    SQLiteDatabaseConnector(Logger logger, Config config) throws SQLException {
+    SQLiteDatabaseConnector(Logger logger, Config config, LoginAllowlist allowlist) throws SQLException {
         this.logger = logger;
         this.config = config;
+        this.allowlist = allowlist;
 
         // Gets the sqliteDatabasePath as a child of the dataDirectoryPath
         File databaseFile = new File(config.dataDirectoryPath.toFile(), config.sqliteDatabasePath);
+        String url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
+
+        // Open the writer first, since it's the one that switches the database to WAL mode and creates the tables
+        writeConnection = new DatabaseConnection(openConnection(url, false));
+
+        // Create the database tables, or upgrade them if they're from an older version of the plugin
+        migrate(databaseFile);
+
+        // Now that the database exists, open the read-only connections
+        readConnectionCount = Math.max(1, config.databaseReadConnections);
+        readConnections = new ArrayBlockingQueue<>(readConnectionCount);
+        for (int i = 0; i < readConnectionCount; i++) {
+            readConnections.add(new DatabaseConnection(openConnection(url, true)));
+        }
+        readExecutor = Executors.newFixedThreadPool(readConnectionCount, runnable -> {
+            Thread thread = new Thread(runnable, "MinecraftDiscordPlugin Database Reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        loadLinkCodes();
+        loadMessageableNames();
+        loadKnownNames();
+        loadLinkedAccounts();
+
+        // Flush coalesced writes periodically, as well as whenever enough of them pile up
+        pendingWrites = new WriteCoalescer(config.databaseWriteBatchSize);
+        long flushInterval = Math.max(1, config.databaseWriteFlushIntervalMillis);
+        databaseExecutor.scheduleWithFixedDelay(this::flushPendingWrites, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+
+        // Periodically drop profiles of offline accounts that haven't been used in a while
+        databaseExecutor.scheduleAtFixedRate(() -> {
+            // Write what's queued so far, then keep any profile that still has writes waiting (from an update made
+            // since the flush, or from a flush still running on another thread), so a reload can't see an old value
+            flushPendingWrites();
+            profiles.evictIdle(PROFILE_IDLE_TTL_MILLIS, pendingWrites::hasPendingWrites);
+            removeExpiredLinkCodes();
+        }, 1, 1, TimeUnit.MINUTES);
+
+        // Periodically delete Discord DM records that are older than the retention window
+        if (config.discordDMRetentionDays > 0) {
+            databaseExecutor.scheduleAtFixedRate(this::pruneDiscordDMs, 1, 60, TimeUnit.MINUTES);
+        }
+    }
+
+    // Schema migrations, in order. Running the migration at index N upgrades a database from version N to version N+1,
+    // where the version is stored in the database's user_version pragma. Databases from before versioning was added
+    // have a user_version of 0, same as a brand-new database, which is why the first migration uses IF NOT EXISTS.
+    // Add new migrations to the end of this list; never modify one that has already been released.
+    private final List<DatabaseOperation<Void>> migrations = List.of(
+            this::createInitialSchema,
+            this::migrateToCompactKeys,
+            this::migrateToLinkCodesTable,
+            this::addDiscordDMTimestamps,
+            this::addDeathAlertsTable
+    );
+
+    private void migrate(File databaseFile) throws SQLException {
+        write(connection -> {
+            Connection rawConnection = connection.getConnection();
+            int version;
+            boolean hasAccounts;
+            try (Statement statement = rawConnection.createStatement()) {
+                try (ResultSet resultSet = statement.executeQuery("PRAGMA user_version;")) {
+                    version = resultSet.getInt(1);
+                }
+                try (ResultSet resultSet = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'accounts';")) {
+                    hasAccounts = resultSet.next();
+                }
+            }
+
+            if (version > migrations.size()) {
+                throw new SQLException("Database schema version " + version + " is newer than this version of the plugin supports (" + migrations.size() + ")!");
+            }
+            if (version == migrations.size()) return null;
 
-        final SQLiteDataSource dc = new SQLiteDataSource();
-        dc.setUrl("jdbc:sqlite:" + databaseFile.getAbsolutePath());
-        connection = dc.getConnection();
-
-        // Create the database tables if they don't exist
-        Statement statement = connection.createStatement();
-
-        statement.execute(
-              "CREATE TABLE IF NOT EXISTS accounts ("
-                + "minecraftUUID TEXT PRIMARY KEY," // Minecraft UUID
-                + "minecraftUser TEXT,"             // Account username
-                + "minecraftName TEXT,"             // Account nickname
-                + "discordId TEXT,"                 // Discord Snowflake ID
-                // User preference flags
-                + "onlineDiscordDMs INTEGER,"       // Whether to send Discord DMs for private messages while the user is online
-                + "offlineDiscordDMs INTEGER,"      // Whether to send Discord DMs for private messages while the user is offline
-                + "deathAlertDelay INTEGER,"        // How many milliseconds to wait after a death before alerting (if they don't respawn)
-                + "msgReplyUser TEXT"               // The username to reply to for /r, /reply
-                + ");"
-        );
-
-        statement.execute(
-              "CREATE UNIQUE INDEX IF NOT EXISTS idx_minecraftUser "
-                + "ON accounts(minecraftUser);"
-        );
-
-        statement.execute(
-              "CREATE UNIQUE INDEX IF NOT EXISTS idx_minecraftName "
-                + "ON accounts(minecraftName);"
-        );
-
-        statement.execute(
-              "CREATE UNIQUE INDEX IF NOT EXISTS idx_discordId "
-                + "ON accounts(discordId);"
-        );
-
-        statement.execute(
-              "CREATE TABLE IF NOT EXISTS discordDMs ("
-                + "messageID TEXT PRIMARY KEY,"
-                + "senderID TEXT,"
-                + "recipientID TEXT"
-                + ");"
-        );
+            // Back up existing databases before touching them, in case something goes wrong
+            if (hasAccounts) {
+                File backupFile = new File(databaseFile.getPath() + ".v" + version + ".bak");
+                if (!backupFile.exists()) {
+                    try (PreparedStatement backup = rawConnection.prepareStatement("VACUUM INTO ?;")) {
+                        backup.setString(1, backupFile.getAbsolutePath());
+                        backup.execute();
+                    }
+                    logger.info("Backed up database to {} before upgrading it.", backupFile.getAbsolutePath());
+                }
+            }
+
+            for (int migration = version; migration < migrations.size(); migration++) {
+                // Each migration runs in its own transaction along with the version bump, so an interrupted upgrade
+                // leaves the database at the last completed version
+                rawConnection.setAutoCommit(false);
+                try (Statement statement = rawConnection.createStatement()) {
+                    migrations.get(migration).run(connection);
+                    statement.execute("PRAGMA user_version = " + (migration + 1) + ";");
+                    rawConnection.commit();
+                } catch (SQLException | RuntimeException e) {
+                    // Roll back before turning autocommit back on, since doing that with a transaction still open
+                    // would commit the half-finished migration
+                    rawConnection.rollback();
+                    rawConnection.setAutoCommit(true);
+                    logger.error("Unable to upgrade database from version {} to {}! Exception message: '{}'\n\tException: {}", migration, migration + 1, e.getMessage(), Arrays.toString(e.getStackTrace()));
+                    throw e;
+                }
+                rawConnection.setAutoCommit(true);
+                if (hasAccounts) logger.info("Upgraded database from version {} to {}.", migration, migration + 1);
+            }
+            return null;
+        });
+    }
+
+    // Version 0 -> 1: The original schema, keyed by text UUIDs and Discord IDs
+    private Void createInitialSchema(DatabaseConnection connection) throws SQLException {
+        try (Statement statement = connection.getConnection().createStatement()) {
+            statement.execute(
+                  "CREATE TABLE IF NOT EXISTS accounts ("
+                    + "minecraftUUID TEXT PRIMARY KEY," // Minecraft UUID
+                    + "minecraftUser TEXT,"             // Account username
+                    + "minecraftName TEXT,"             // Account nickname
+                    + "discordId TEXT,"                 // Discord Snowflake ID
+                    // User preference flags
+                    + "onlineDiscordDMs INTEGER,"       // Whether to send Discord DMs for private messages while the user is online
+                    + "offlineDiscordDMs INTEGER,"      // Whether to send Discord DMs for private messages while the user is offline
+                    + "deathAlertDelay INTEGER,"        // How many milliseconds to wait after a death before alerting (if they don't respawn)
+                    + "msgReplyUser TEXT"               // The username to reply to for /r, /reply
+                    + ");"
+            );
+
+            statement.execute(
+                  "CREATE UNIQUE INDEX IF NOT EXISTS idx_minecraftUser "
+                    + "ON accounts(minecraftUser);"
+            );
+
+            statement.execute(
+                  "CREATE UNIQUE INDEX IF NOT EXISTS idx_minecraftName "
+                    + "ON accounts(minecraftName);"
+            );
+
+            statement.execute(
+                  "CREATE UNIQUE INDEX IF NOT EXISTS idx_discordId "
+                    + "ON accounts(discordId);"
+            );
+
+            statement.execute(
+                  "CREATE TABLE IF NOT EXISTS discordDMs ("
+                    + "messageID TEXT PRIMARY KEY,"
+                    + "senderID TEXT,"
+                    + "recipientID TEXT"
+                    + ");"
+            );
+        }
+        return null;
+    }
+
+    // Version 1 -> 2: Store Minecraft UUIDs as 16-byte BLOBs and Discord snowflakes as INTEGERs, which makes the keys
+    // and their indices much smaller than the text versions. Pending link codes used to be stored in the discordId
+    // column as "LINK <code>", so they're moved to their own column.
+    private Void migrateToCompactKeys(DatabaseConnection connection) throws SQLException {
+        Connection rawConnection = connection.getConnection();
+        try (Statement statement = rawConnection.createStatement()) {
+            statement.execute(
+                  "CREATE TABLE accounts_new ("
+                    + "minecraftUUID BLOB PRIMARY KEY," // Minecraft UUID (16 bytes, big-endian)
+                    + "minecraftUser TEXT,"             // Account username
+                    + "minecraftName TEXT,"             // Account nickname
+                    + "discordId INTEGER,"              // Discord Snowflake ID
+                    + "linkCode TEXT,"                  // Pending account link code, if not linked yet
+                    // User preference flags
+                    + "onlineDiscordDMs INTEGER,"       // Whether to send Discord DMs for private messages while the user is online
+                    + "offlineDiscordDMs INTEGER,"      // Whether to send Discord DMs for private messages while the user is offline
+                    + "deathAlertDelay REAL,"           // How many seconds to wait after a death before alerting (if they don't respawn)
+                    + "msgReplyUser TEXT"               // The username to reply to for /r, /reply
+                    + ");"
+            );
+            statement.execute(
+                  "CREATE TABLE discordDMs_new ("
+                    + "messageID INTEGER PRIMARY KEY,"
+                    + "senderID INTEGER,"
+                    + "recipientID INTEGER"
+                    + ");"
+            );
+
+            // Convert every row in Java, since SQLite can't parse UUID strings itself
+            try (ResultSet accounts = statement.executeQuery("SELECT * FROM accounts;");
+                 PreparedStatement insert = rawConnection.prepareStatement(
+                         "INSERT INTO accounts_new (minecraftUUID, minecraftUser, minecraftName, discordId, linkCode, onlineDiscordDMs, offlineDiscordDMs, deathAlertDelay, msgReplyUser) "
+                                 + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)"
+                 )) {
+                while (accounts.next()) {
+                    String uuid = accounts.getString("minecraftUUID");
+                    String discordId = accounts.getString("discordId");
+                    Long snowflake = null;
+                    String linkCode = null;
+                    if (discordId != null) {
+                        if (discordId.startsWith("LINK ")) {
+                            linkCode = discordId.substring("LINK ".length());
+                        } else {
+                            snowflake = parseSnowflake(discordId);
+                            // Dropping it would unlink the account, so stop the upgrade and let an admin fix the row
+                            if (snowflake == null) {
+                                throw new SQLException("Invalid Discord ID '" + discordId + "' for account " + uuid + ". Correct or remove it in the accounts table, then restart to finish upgrading the database.");
+                            }
+                        }
+                    }
+
+                    UUID account;
+                    try {
+                        account = UUID.fromString(uuid);
+                    } catch (IllegalArgumentException | NullPointerException e) {
+                        throw new SQLException("Invalid Minecraft UUID '" + uuid + "' in the accounts table. Correct or remove the row, then restart to finish upgrading the database.", e);
+                    }
+                    insert.setBytes(1, uuidToBytes(account));
+                    insert.setString(2, accounts.getString("minecraftUser"));
+                    insert.setString(3, accounts.getString("minecraftName"));
+                    insert.setObject(4, snowflake);
+                    insert.setString(5, linkCode);
+                    insert.setObject(6, accounts.getObject("onlineDiscordDMs"));
+                    insert.setObject(7, accounts.getObject("offlineDiscordDMs"));
+                    insert.setObject(8, accounts.getObject("deathAlertDelay"));
+                    insert.setString(9, accounts.getString("msgReplyUser"));
+                    insert.execute();
+                }
+            }
+
+            try (ResultSet discordDMs = statement.executeQuery("SELECT * FROM discordDMs;");
+                 PreparedStatement insert = rawConnection.prepareStatement("INSERT INTO discordDMs_new (messageID, senderID, recipientID) VALUES (?, ?, ?)")) {
+                while (discordDMs.next()) {
+                    Long messageID = parseSnowflake(discordDMs.getString("messageID"));
+                    if (messageID == null) continue;
+                    insert.setLong(1, messageID);
+                    insert.setObject(2, parseSnowflake(discordDMs.getString("senderID")));
+                    insert.setObject(3, parseSnowflake(discordDMs.getString("recipientID")));
+                    insert.execute();
+                }
+            }
+
+            // Swap the new tables in. The old indices are dropped along with the old table.
+            statement.execute("DROP TABLE accounts;");
+            statement.execute("ALTER TABLE accounts_new RENAME TO accounts;");
+            statement.execute("DROP TABLE discordDMs;");
+            statement.execute("ALTER TABLE discordDMs_new RENAME TO discordDMs;");
+
+            statement.execute("CREATE UNIQUE INDEX idx_minecraftUser ON accounts(minecraftUser);");
+            statement.execute("CREATE UNIQUE INDEX idx_minecraftName ON accounts(minecraftName);");
+            statement.execute("CREATE UNIQUE INDEX idx_discordId ON accounts(discordId);");
+            statement.execute("CREATE UNIQUE INDEX idx_linkCode ON accounts(linkCode);");
+        }
+        return null;
+    }
+
+    // Version 2 -> 3: Move pending link codes out of the accounts table into their own table, with an expiry time.
+    // Existing codes are given a full expiry period from the time of the upgrade.
+    private Void migrateToLinkCodesTable(DatabaseConnection connection) throws SQLException {
+        try (Statement statement = connection.getConnection().createStatement()) {
+            statement.execute(
+                  "CREATE TABLE linkCodes ("
+                    + "code TEXT PRIMARY KEY,"          // The code the user needs to enter in Discord
+                    + "minecraftUUID BLOB UNIQUE,"      // The account the code links to
+                    + "expiresAt INTEGER"               // When the code stops being valid, in milliseconds since the epoch
+                    + ");"
+            );
+            statement.execute("CREATE INDEX idx_linkCodes_expiresAt ON linkCodes(expiresAt);");
+
+            statement.execute(
+                  "INSERT INTO linkCodes (code, minecraftUUID, expiresAt) "
+                    + "SELECT linkCode, minecraftUUID, " + linkCodeExpiryTime() + " FROM accounts WHERE linkCode IS NOT NULL;"
+            );
+            statement.execute("DROP INDEX idx_linkCode;");
+            statement.execute("ALTER TABLE accounts DROP COLUMN linkCode;");
+        }
+        return null;
+    }
+
+    // Version 3 -> 4: Record when each Discord DM was sent, so that old ones can be pruned.
+    // Existing DMs are treated as if they were sent at the time of the upgrade.
+    private Void addDiscordDMTimestamps(DatabaseConnection connection) throws SQLException {
+        try (Statement statement = connection.getConnection().createStatement()) {
+            statement.execute("ALTER TABLE discordDMs ADD COLUMN createdAt INTEGER;"); // When the DM was sent, in milliseconds since the epoch
+            statement.execute("UPDATE discordDMs SET createdAt = " + System.currentTimeMillis() + ";");
+            statement.execute("CREATE INDEX idx_discordDMs_createdAt ON discordDMs(createdAt);");
+        }
+        return null;
+    }
+
+    private Void addDeathAlertsTable(DatabaseConnection connection) throws SQLException {
+        try (Statement statement = connection.getConnection().createStatement()) {
+            // Death alerts that haven't been sent yet, so they survive restarts. Times are in milliseconds since the epoch.
+            statement.execute("CREATE TABLE deathAlerts (minecraftUUID BLOB PRIMARY KEY, diedAt INTEGER NOT NULL, alertAt INTEGER NOT NULL);");
+        }
+        return null;
+    }
+
+    // Helpers to convert keys to and from the way they're stored in the database
+    static byte[] uuidToBytes(@Nonnull UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    static UUID bytesToUUID(byte[] bytes) {
+        if (bytes == null) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    static Long parseSnowflake(String snowflake) {
+        if (snowflake == null) return null;
+        try {
+            return Long.parseLong(snowflake);
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+    }
+
+    // Converts a value for the given column into the type it's stored as
+    private static Object toDatabaseValue(DatabaseColumns column, Object value) {
+        if (value == null) return null;
+        return switch (column) {
+            case minecraftUUID -> uuidToBytes(value instanceof UUID uuid ? uuid : UUID.fromString(value.toString()));
+            case discordId -> value instanceof Long ? value : parseSnowflake(value.toString());
+            default -> value;
+        };
+    }
+
+    // Converts a value read from the given column back into the type used by the rest of the plugin
+    private static Object fromDatabaseValue(DatabaseColumns column, Object value) {
+        if (value == null) return null;
+        return switch (column) {
+            case minecraftUUID -> bytesToUUID((byte[]) value);
+            case discordId -> value.toString();
+            default -> value;
+        };
+    }
+
+    private static Connection openConnection(String url, boolean readOnly) throws SQLException {
+        SQLiteConfig sqliteConfig = new SQLiteConfig();
+        if (readOnly) {
+            sqliteConfig.setReadOnly(true);
+        } else {
+            // WAL mode is persistent, so only the writer needs to set it. With WAL, NORMAL synchronous mode is still
+            // safe from corruption, and only syncs to disk on checkpoints rather than on every transaction.
+            sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        }
+        // Wait for locks rather than failing immediately, e.g. while a checkpoint is running
+        sqliteConfig.setBusyTimeout(5000);
+        // 8 MiB page cache per connection (negative values are in KiB), and memory-map up to 64 MiB of the database
+        sqliteConfig.setCacheSize(-8192);
+        sqliteConfig.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, String.valueOf(64L * 1024 * 1024));
+
+        final SQLiteDataSource dc = new SQLiteDataSource(sqliteConfig);
+        dc.setUrl(url);
+        return dc.getConnection();
+    }
+
+    // Closes all cached statements and the underlying connections. Should be called once on shutdown.
+    void close() {
+        // Report how well the known name filter did this run, so its usefulness can be judged from the logs
+        long filterHits = getNameLookupFilterHits();
+        long filterMisses = getNameLookupFilterMisses();
+        long filterLookups = filterHits + filterMisses;
+        logger.info("Name lookups: {} total, {} skipped the database thanks to the known name filter ({}%).",
+                filterLookups, filterMisses, filterLookups == 0 ? 0 : filterMisses * 100 / filterLookups);
+
+        // Finish any pending profile writes before closing the connections
+        databaseExecutor.shutdown();
+        readExecutor.shutdown();
+        try {
+            if (!databaseExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Timed out waiting for pending account updates to be written to the database!");
+            }
+            if (!readExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Timed out waiting for pending database reads to finish!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Write anything that was queued after the last flush
+        flushPendingWrites();
+
+        try {
+            // Wait for any in-use read connections to be returned to the pool before closing them
+            for (int i = 0; i < readConnectionCount; i++) {
+                DatabaseConnection connection = readConnections.poll(5, TimeUnit.SECONDS);
+                if (connection == null) {
+                    logger.warn("Timed out waiting for a database read connection to be returned!");
+                    break;
+                }
+                connection.close();
+            }
+            synchronized (writeConnection) {
+                writeConnection.close();
+            }
+        } catch (SQLException e) {
+            logger.error("Unable to close database connection! SQLException message: '{}'\n\tException: {}", e.getMessage(), Arrays.toString(e.getStackTrace()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs an operation on one of the read-only connections, waiting for one to become available if they're all in use
+    private <T> T read(DatabaseOperation<T> operation) throws SQLException {
+        DatabaseConnection connection;
+        try {
+            connection = readConnections.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            return operation.run(connection);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    // Runs an operation on the writer connection
+    private <T> T write(DatabaseOperation<T> operation) throws SQLException {
+        synchronized (writeConnection) {
+            return operation.run(writeConnection);
+        }
+    }
+
+    // Runs a database operation on the database writer thread, completing the returned future with its result
+    <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(operation, databaseExecutor);
+    }
+
+    CompletableFuture<Void> runAsync(Runnable operation) {
+        return CompletableFuture.runAsync(operation, databaseExecutor);
+    }
+
+    // Runs a read-only database operation on one of the reader threads
+    <T> CompletableFuture<T> supplyReadAsync(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(operation, readExecutor);
+    }
+
+    // Returns the cached statement for the given column operation on the given connection, preparing it if needed
+    private static PreparedStatement getColumnStatement(DatabaseConnection connection, DatabaseColumns searchColumn, DatabaseColumns targetColumn, StatementOperation operation) throws SQLException {
+        // Even though we have to inject the column names directly, we still should use a PreparedStatement as it:
+        // 1) Can speed up repeated executions, since it's cached and only parsed once
+        // 2) Sanitizes column values (which are exposed to the user)
+        // Column names are never loaded from user input and, even if they were to be, are passed via an Enum so that
+        // we aren't vulnerable to SQL injection.
+        return connection.prepare(new StatementKey(searchColumn, targetColumn, operation), () -> switch (operation) {
+            case SELECT -> "SELECT " + targetColumn + " FROM accounts WHERE " + searchColumn + " = ?;";
+            case UPDATE -> "UPDATE accounts SET " + targetColumn + " = ? WHERE " + searchColumn + " = ?";
+        });
+    }
+
+    private static PreparedStatement getStatement(DatabaseConnection connection, Query query) throws SQLException {
+        return connection.prepare(query, () -> query.sql);
     }
 
     // Checks the database to make sure the user is allowed to connect.
     // If they are, returns null
     // If not, returns a link code they must enter to link their account
     // If the user is not in the database, adds them for the account linking process
-    String checkAllowedToConnect(String minecraftUser, String minecraftUUID) {
+    String checkAllowedToConnect(String minecraftUser, UUID minecraftUUID) {
+        // Linking an account removes its code, so anyone with an unexpired code is still unlinked.
+        // Hand the same code back rather than generating (and writing) a new one on every attempt.
+        LinkCodeManager.PendingLinkCode existingCode = linkCodes.getForAccount(minecraftUUID);
+        if (existingCode != null) return existingCode.code();
+
+        byte[] accountKey = uuidToBytes(minecraftUUID);
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement("SELECT discordId FROM accounts WHERE minecraftUser = ? AND minecraftUUID = ?");
-
-            preparedStatement.setString(1, minecraftUser);
-            preparedStatement.setString(2, minecraftUUID);
-
-            ResultSet result = preparedStatement.executeQuery();
-            if (result != null && result.getString(1) != null) {
-                // Check if the account is actually linked, or if the user just has a temporary link code
-                //noinspection StatementWithEmptyBody
-                if (result.getString(1).startsWith("LINK")) {
-                    // This is actually a link code so user is not allowed to connect.
-                    // We just fall through to link code generation
-                } else {
+            String linkCode = write(connection -> {
+                boolean linked = false;
+                boolean inDatabase;
+                PreparedStatement selectLinkStatus = getStatement(connection, Query.SELECT_LINK_STATUS);
+                selectLinkStatus.setString(1, minecraftUser);
+                selectLinkStatus.setBytes(2, accountKey);
+                try (ResultSet result = selectLinkStatus.executeQuery()) {
+                    inDatabase = result.next();
+                    if (inDatabase) {
+                        result.getLong(1);
+                        linked = !result.wasNull();
+                    }
+                }
+
+                if (linked) {
                     // The user is linked so return null to indicate they're good to go
                     return null;
+                } else if (!inDatabase) {
+                    // The user is not in the database, so add them and fall through to link code generation
+                    PreparedStatement insertAccount = getStatement(connection, Query.INSERT_ACCOUNT);
+                    // Use the account username for both the username and display name fields
+                    knownNames.add(minecraftUser);
+                    insertAccount.setString(1, minecraftUser);
+                    insertAccount.setString(2, minecraftUser);
+                    insertAccount.setBytes(3, accountKey);
+                    insertAccount.execute();
                 }
-            } else {
-                // The user is not in the database, so add them and fall through to link code generation
-                preparedStatement = connection.prepareStatement(
-                        "INSERT INTO accounts (minecraftUser, minecraftName, minecraftUUID) " +
-                                "VALUES (?, ?, ?)"
-                );
-                // Use the account username for both the username and display name fields
-                preparedStatement.setString(1, minecraftUser);
-                preparedStatement.setString(2, minecraftUser);
-                preparedStatement.setString(3, minecraftUUID);
-
-                preparedStatement.execute();
-            }
 
-            // If we get here, they need a (new) link code. Generate one, add it to the database, and return it.
+                // If we get here, they either have an expired link code or aren't in the database yet.
+                // Either way, they need a new link code. Generate one, add it to the database, and return it.
 
-            // Generates a random uppercase-and-numbers string. By using a radix of 32, we use 5 bits per character,
-            // which means that 30 bits results in a 6-character code.
-            String linkCode = new BigInteger(30, random).toString(32).toUpperCase();
+                // Generates a random uppercase-and-numbers string. By using a radix of 32, we use 5 bits per character,
+                // which means that 30 bits results in a 6-character code.
+                String newLinkCode;
+                do {
+                    newLinkCode = new BigInteger(30, random).toString(32).toUpperCase();
+                } while (linkCodes.contains(newLinkCode));
+                LinkCodeManager.PendingLinkCode pending = new LinkCodeManager.PendingLinkCode(newLinkCode, minecraftUUID, linkCodeExpiryTime());
 
-            // Add the link code to the database
-            preparedStatement = connection.prepareStatement("UPDATE accounts SET discordId = ? WHERE minecraftUser = ? AND minecraftUUID = ?");
-            preparedStatement.setString(1, "LINK " + linkCode); // Prefix with "LINK" to identify this as a link code, rather than a Discord Snowflake ID
-            preparedStatement.setString(2, minecraftUser);
-            preparedStatement.setString(3, minecraftUUID);
-            preparedStatement.execute();
+                // Add the link code to the database
+                PreparedStatement upsertLinkCode = getStatement(connection, Query.UPSERT_LINK_CODE);
+                upsertLinkCode.setString(1, pending.code());
+                upsertLinkCode.setBytes(2, accountKey);
+                upsertLinkCode.setLong(3, pending.expiresAt());
+                upsertLinkCode.execute();
+                linkCodes.put(pending);
+                return newLinkCode;
+            });
 
-            // Return the link code, so it can be shown to the client.
+            // Return the link code (if any), so it can be shown to the client.
             return linkCode;
         } catch (SQLException e) {
             logger.error("Unable to verify if player is linked! Minecraft user: '{}', Minecraft UUID: '{}'. SQLException message: '{}'\n\tException: {}", minecraftUser, minecraftUUID, e.getMessage(), Arrays.toString(e.getStackTrace()));
@@ -147,21 +677,56 @@ public class SQLiteDatabaseConnector {
         // Check if the Discord account is already linked
         UUID account = getAccountFromDiscord(discordId);
         if (account != null) {
-            return config.discordAccountAlreadyLinkedMessage.replace("{username}", getMinecraftNicknameFor(account));
+            return config.discordAccountAlreadyLinkedMessage.render(getMinecraftNicknameFor(account));
         }
 
         // Check if the link code is valid
-        if (getAccountFromDiscord("LINK "+linkCode) == null) {
-            return config.invalidLinkCodeMessage.replace("{code}", linkCode);
+        LinkCodeManager.PendingLinkCode pending = linkCodes.get(linkCode);
+        if (pending == null) {
+            return config.invalidLinkCodeMessage.render(linkCode);
         }
 
         // Link the new account
-        updateColumnFor(DatabaseColumns.discordId, "LINK " + linkCode, DatabaseColumns.discordId, discordId);
+        Long snowflake = parseSnowflake(discordId);
+        if (snowflake == null) {
+            logger.error("Unable to link Discord account to Minecraft account! Invalid Discord Snowflake ID: '{}', link code: '{}'.", discordId, linkCode);
+            return "Unknown error while linking your account. Please contact the server administrator.";
+        }
+        try {
+            write(connection -> {
+                // Set the Discord ID and remove the code together, so a failure can't leave a linked account with a code
+                Connection rawConnection = connection.getConnection();
+                rawConnection.setAutoCommit(false);
+                try {
+                    PreparedStatement linkAccount = getStatement(connection, Query.LINK_ACCOUNT);
+                    linkAccount.setLong(1, snowflake);
+                    linkAccount.setBytes(2, uuidToBytes(pending.account()));
+                    linkAccount.execute();
+
+                    PreparedStatement deleteLinkCode = getStatement(connection, Query.DELETE_LINK_CODE);
+                    deleteLinkCode.setString(1, pending.code());
+                    deleteLinkCode.execute();
+                    rawConnection.commit();
+                } catch (SQLException e) {
+                    rawConnection.rollback();
+                    throw e;
+                } finally {
+                    rawConnection.setAutoCommit(true);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to link Discord account to Minecraft account! Discord Snowflake ID: '{}', link code: '{}'. SQLException message: '{}'\n\tException: {}", discordId, linkCode, e.getMessage(), Arrays.toString(e.getStackTrace()));
+            return "Unknown error while linking your account. Please contact the server administrator.";
+        }
+        linkCodes.remove(pending);
+        allowlist.setLinked(pending.account(), discordId);
+        updateCachedProfile(pending.account(), profile -> profile.discordId = discordId);
 
         // Get the username of the Minecraft account we've linked to
         account = getAccountFromDiscord(discordId);
         if (account != null) {
-            return config.discordAccountLinkedSuccessfullyMessage.replace("{username}", getMinecraftNicknameFor(account));
+            return config.discordAccountLinkedSuccessfullyMessage.render(getMinecraftNicknameFor(account));
         }
 
         // If we get here, we tried to update the account and didn't encounter any SQLException(s), yet it didn't update.
@@ -169,155 +734,443 @@ public class SQLiteDatabaseConnector {
         return "Unknown error while linking your account. Please contact the server administrator.";
     }
 
-    void updateColumnFor(DatabaseColumns searchColumn, Object searchValue, DatabaseColumns targetColumn, Object targetValue) {
+    private long linkCodeExpiryTime() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(config.linkCodeExpiryMinutes);
+    }
+
+    // Loads all unexpired link codes from the database into memory
+    private void loadLinkCodes() throws SQLException {
+        read(connection -> {
+            PreparedStatement preparedStatement = getStatement(connection, Query.SELECT_LINK_CODES);
+            preparedStatement.setLong(1, System.currentTimeMillis());
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    linkCodes.put(new LinkCodeManager.PendingLinkCode(
+                            resultSet.getString("code"),
+                            bytesToUUID(resultSet.getBytes("minecraftUUID")),
+                            resultSet.getLong("expiresAt")
+                    ));
+                }
+            }
+            return null;
+        });
+    }
+
+    // Loads the accounts that allow offline messaging into the name index
+    private void loadMessageableNames() throws SQLException {
+        read(connection -> {
+            try (ResultSet resultSet = getStatement(connection, Query.SELECT_OFFLINE_MESSAGING_ACCOUNTS).executeQuery()) {
+                while (resultSet.next()) {
+                    messageableNames.setOfflineMessaging(bytesToUUID(resultSet.getBytes(1)), resultSet.getString(2), true);
+                }
+            }
+            return null;
+        });
+    }
+
+    // Loads every username and nickname into the known name filter
+    private void loadKnownNames() throws SQLException {
+        read(connection -> {
+            try (ResultSet resultSet = getStatement(connection, Query.SELECT_ALL_NAMES).executeQuery()) {
+                while (resultSet.next()) {
+                    knownNames.add(resultSet.getString(1));
+                    knownNames.add(resultSet.getString(2));
+                }
+            }
+            return null;
+        });
+    }
+
+    // Loads every linked account into the login allowlist
+    private void loadLinkedAccounts() throws SQLException {
+        read(connection -> {
+            try (ResultSet resultSet = getStatement(connection, Query.SELECT_LINKED_ACCOUNTS).executeQuery()) {
+                while (resultSet.next()) {
+                    allowlist.setLinked(bytesToUUID(resultSet.getBytes(1)), Long.toString(resultSet.getLong(2)));
+                }
+            }
+            return null;
+        });
+    }
+
+    // Removes expired link codes from memory and from the database
+    private void removeExpiredLinkCodes() {
+        long now = System.currentTimeMillis();
+        linkCodes.removeExpired(now);
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement("UPDATE accounts SET " + targetColumn + " = ? WHERE " + searchColumn + " = ?");
-            preparedStatement.setObject(1, targetValue);
-            preparedStatement.setObject(2, searchValue);
-            preparedStatement.execute();
+            write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.DELETE_EXPIRED_LINK_CODES);
+                preparedStatement.setLong(1, now);
+                return preparedStatement.executeUpdate();
+            });
         } catch (SQLException e) {
-            logger.error("Unable to get value for column '{}' given column '{}' = '{}'! SQLException message: '{}'\n\tException: {}", targetColumn, searchColumn, searchValue, e.getMessage(), Arrays.toString(e.getStackTrace()));
+            logger.error("Unable to remove expired link codes! SQLException message: '{}'\n\tException: {}", e.getMessage(), Arrays.toString(e.getStackTrace()));
+        }
+    }
+
+    // Loads the full account row for the given query and value, or returns null if there's no such account
+    private AccountProfile loadProfile(Query query, Object searchValue) {
+        try {
+            return read(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, query);
+                preparedStatement.setObject(1, searchValue);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return AccountProfile.fromResultSet(resultSet);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to load account profile for '{}'! SQLException message: '{}'\n\tException: {}", searchValue, e.getMessage(), Arrays.toString(e.getStackTrace()));
             throw new RuntimeException(e);
         }
     }
 
-    Object getColumnFrom(DatabaseColumns searchColumn, Object searchValue, DatabaseColumns targetColumn) {
+    // Returns the cached profile for the account, loading it from the database if it isn't cached yet
+    private AccountProfile getProfile(@Nonnull UUID account) {
+        AccountProfile profile = profiles.get(account);
+        if (profile != null) return profile;
+
+        profile = loadProfile(Query.SELECT_PROFILE_BY_UUID, uuidToBytes(account));
+        if (profile == null) return null;
+        return profiles.putIfAbsent(profile);
+    }
+
+    // Applies a change to the cached profile for the account, if there is one, keeping the Discord ID index up to date
+    private void updateCachedProfile(@Nonnull UUID account, Consumer<AccountProfile> update) {
+        AccountProfile profile = profiles.get(account);
+        if (profile == null) return;
+        String oldDiscordId = profile.getLinkedDiscordId();
+        update.accept(profile);
+        profiles.updateDiscordIndex(profile, oldDiscordId);
+    }
+
+    // Same as updateCachedProfile(), but loads the profile first if needed. Used for background writes so that a
+    // profile loaded from the database before the write lands can't end up caching the old value.
+    private void updateProfile(@Nonnull UUID account, Consumer<AccountProfile> update) {
+        if (getProfile(account) == null) return;
+        updateCachedProfile(account, update);
+    }
+
+    // Queues a column update to be written to the database in the background
+    private void writeBehind(DatabaseColumns searchColumn, Object searchValue, DatabaseColumns targetColumn, Object targetValue) {
+        if (pendingWrites.add(new WriteCoalescer.PendingWrite(searchColumn, searchValue, targetColumn), targetValue)) {
+            databaseExecutor.execute(this::flushPendingWrites);
+        }
+    }
+
+    // Writes all queued column updates to the database in a single transaction.
+    // Flushes are serialized (this is also called during shutdown, off the database thread) so that the coalescer can
+    // track which writes are still in progress.
+    void flushPendingWrites() {
+        synchronized (flushLock) {
+            flushPendingWritesLocked();
+        }
+    }
+
+    private void flushPendingWritesLocked() {
+        Map<WriteCoalescer.PendingWrite, Object> writes = pendingWrites.drain();
+        if (writes.isEmpty()) {
+            pendingWrites.finished();
+            return;
+        }
+
         try {
-            // Even though we have to inject the column names directly, we still should use a PreparedStatement as it:
-            // 1) Can speed up repeated executions via server-side caching
-            // 2) Sanitizes column values (which are exposed to the user)
-            // Column names are never loaded from user input and, even if they were to be, are passed via an Enum so that
-            // we aren't vulnerable to SQL injection.
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT " + targetColumn + " FROM accounts WHERE " + searchColumn + " = ?;"
-            );
-            preparedStatement.setObject(1, searchValue);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet != null) {
-                return resultSet.getObject(1);
-            }
-            return null;
+            write(connection -> {
+                Connection rawConnection = connection.getConnection();
+                rawConnection.setAutoCommit(false);
+                try {
+                    for (Map.Entry<WriteCoalescer.PendingWrite, Object> write : writes.entrySet()) {
+                        WriteCoalescer.PendingWrite key = write.getKey();
+                        PreparedStatement preparedStatement = getColumnStatement(connection, key.searchColumn(), key.targetColumn(), StatementOperation.UPDATE);
+                        preparedStatement.setObject(1, toDatabaseValue(key.targetColumn(), write.getValue()));
+                        preparedStatement.setObject(2, toDatabaseValue(key.searchColumn(), key.searchValue()));
+                        preparedStatement.execute();
+                    }
+                    rawConnection.commit();
+                } catch (SQLException e) {
+                    rawConnection.rollback();
+                    throw e;
+                } finally {
+                    rawConnection.setAutoCommit(true);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to write {} queued account updates! SQLException message: '{}'\n\tException: {}", writes.size(), e.getMessage(), Arrays.toString(e.getStackTrace()));
+        } finally {
+            pendingWrites.finished();
+        }
+    }
+
+    // Loads the player's profile into the cache and keeps it there until releaseProfile() is called.
+    // Should be called once a player is allowed to connect. Returns the cached profile, or null if there's no account.
+    AccountProfile cacheProfile(@Nonnull UUID account) {
+        // An already cached profile is at least as new as the database (its updates may not have been written yet), so
+        // only load it if it isn't cached
+        AccountProfile profile = profiles.get(account);
+        if (profile == null) profile = loadProfile(Query.SELECT_PROFILE_BY_UUID, uuidToBytes(account));
+        if (profile == null) return null;
+        profile = profiles.put(profile, true);
+        messageableNames.setOnline(account, profile.minecraftUser, true);
+        return profile;
+    }
+
+    // Drops the player's profile from the cache once any pending writes for it have finished
+    void releaseProfile(@Nonnull UUID account) {
+        AccountProfile profile = profiles.get(account);
+        if (profile != null) messageableNames.setOnline(account, profile.minecraftUser, false);
+
+        Runnable release = () -> {
+            flushPendingWrites();
+            // If they've been updated again since, let the idle eviction drop it once those writes are done instead
+            if (pendingWrites.hasPendingWrites(account)) profiles.unpin(account);
+            else profiles.remove(account);
+        };
+        // Players who are still online when the proxy shuts down disconnect after close() has stopped the database
+        // thread, so release their profiles here instead
+        if (databaseExecutor.isShutdown()) {
+            release.run();
+            return;
+        }
+        try {
+            databaseExecutor.execute(release);
+        } catch (RejectedExecutionException e) {
+            // The database thread was stopped after the check above
+            release.run();
+        }
+    }
+
+    void updateColumnFor(DatabaseColumns searchColumn, Object searchValue, DatabaseColumns targetColumn, Object targetValue) {
+        try {
+            write(connection -> {
+                PreparedStatement preparedStatement = getColumnStatement(connection, searchColumn, targetColumn, StatementOperation.UPDATE);
+                preparedStatement.setObject(1, toDatabaseValue(targetColumn, targetValue));
+                preparedStatement.setObject(2, toDatabaseValue(searchColumn, searchValue));
+                return preparedStatement.execute();
+            });
         } catch (SQLException e) {
             logger.error("Unable to get value for column '{}' given column '{}' = '{}'! SQLException message: '{}'\n\tException: {}", targetColumn, searchColumn, searchValue, e.getMessage(), Arrays.toString(e.getStackTrace()));
             throw new RuntimeException(e);
         }
     }
 
-    // Below are the helper methods to perform various actions
-    public List<String> getAllUsersWithOfflineMessaging() {
-        List<String> result = new ArrayList<>();
+    Object getColumnFrom(DatabaseColumns searchColumn, Object searchValue, DatabaseColumns targetColumn) {
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT minecraftUser FROM accounts WHERE offlineDiscordDMs = 1;"
-            );
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                result.add(resultSet.getString(1));
-            }
-            return result;
+            return read(connection -> {
+                PreparedStatement preparedStatement = getColumnStatement(connection, searchColumn, targetColumn, StatementOperation.SELECT);
+                preparedStatement.setObject(1, toDatabaseValue(searchColumn, searchValue));
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next()) {
+                        return fromDatabaseValue(targetColumn, resultSet.getObject(1));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
-            logger.error("Unable to get users with offline messaging! SQLException message: '{}'\n\tException: {}", e.getMessage(), Arrays.toString(e.getStackTrace()));
+            logger.error("Unable to get value for column '{}' given column '{}' = '{}'! SQLException message: '{}'\n\tException: {}", targetColumn, searchColumn, searchValue, e.getMessage(), Arrays.toString(e.getStackTrace()));
             throw new RuntimeException(e);
         }
     }
 
+    // Below are the helper methods to perform various actions
+    // Returns up to limit usernames starting with the given prefix (ignoring case) that can be sent a private message,
+    // either because they're online or because they allow Discord DMs while offline. Doesn't touch the database.
+    public List<String> findMessageableNames(@Nonnull String prefix, int limit) {
+        return messageableNames.findByPrefix(prefix, limit);
+    }
+
     // Methods to get a Minecraft UUID, given other information
     public UUID getAccountFromDiscord(@Nonnull String discordId) {
-        String result = (String) getColumnFrom(DatabaseColumns.discordId, discordId, DatabaseColumns.minecraftUUID);
-        if (result == null) return null;
-        return UUID.fromString(result);
+        AccountProfile profile = profiles.getByDiscordId(discordId);
+        if (profile != null) return profile.account;
+
+        Long snowflake = parseSnowflake(discordId);
+        if (snowflake == null) return null;
+        profile = loadProfile(Query.SELECT_PROFILE_BY_DISCORD, snowflake);
+        if (profile == null) return null;
+        return profiles.putIfAbsent(profile).account;
     }
 
     public UUID getUUIDFromName(@Nonnull String name) {
-        String result = (String) getColumnFrom(DatabaseColumns.minecraftName, name, DatabaseColumns.minecraftUUID);
+        if (!knownNames.mightContain(name)) return null;
+
+        UUID result = (UUID) getColumnFrom(DatabaseColumns.minecraftName, name, DatabaseColumns.minecraftUUID);
         if (result == null) {
             // If there's no account with that nickname, look for one with that username
-            result = (String) getColumnFrom(DatabaseColumns.minecraftUser, name, DatabaseColumns.minecraftUUID);
-            if (result == null) return null;
+            result = (UUID) getColumnFrom(DatabaseColumns.minecraftUser, name, DatabaseColumns.minecraftUUID);
         }
-        return UUID.fromString(result);
+        return result;
+    }
+
+    // Number of name lookups that had to query the database, and that were answered from the known name filter instead
+    public long getNameLookupFilterHits() {
+        return knownNames.getHits();
+    }
+
+    public long getNameLookupFilterMisses() {
+        return knownNames.getMisses();
     }
 
 
     // Methods to get other information, given a Minecraft UUID
     public String getDiscordIDFor(@Nonnull UUID account) {
-        String discordId = (String) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.discordId);
-        // If the Discord ID is actually a linking code, act as if there is no associated ID
-        if (discordId == null || discordId.startsWith("LINK ")) return null;
-        return discordId;
+        AccountProfile profile = getProfile(account);
+        if (profile == null) return null;
+        return profile.getLinkedDiscordId();
     }
 
     public String getMinecraftNicknameFor(@Nonnull UUID account) {
-        return (String) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.minecraftName);
+        AccountProfile profile = getProfile(account);
+        if (profile == null) return null;
+        return profile.minecraftName;
     }
 
     public boolean getOfflineDiscordDMs(@Nonnull UUID account) {
-        return (int) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.offlineDiscordDMs) == 1;
+        AccountProfile profile = getProfile(account);
+        return profile != null && profile.offlineDiscordDMs;
     }
 
     public boolean getOnlineDiscordDMs(@Nonnull UUID account) {
-        return (int) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.onlineDiscordDMs) == 1;
+        AccountProfile profile = getProfile(account);
+        return profile != null && profile.onlineDiscordDMs;
     }
 
     public double getDeathAlertDelay(@Nonnull UUID account) {
-        return (double) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.deathAlertDelay);
+        AccountProfile profile = getProfile(account);
+        if (profile == null) return 0;
+        return profile.deathAlertDelay;
     }
 
     public String getMessageReplyUsername(@Nonnull UUID account) {
-        return (String) getColumnFrom(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.msgReplyUser);
+        AccountProfile profile = getProfile(account);
+        if (profile == null) return null;
+        return profile.msgReplyUser;
     }
 
     // Methods to update data
     public void updateMinecraftUsername(@Nonnull UUID mcUUID, String mcName) {
-        updateColumnFor(DatabaseColumns.minecraftUUID, mcUUID.toString(), DatabaseColumns.minecraftUser, mcName);
+        knownNames.add(mcName);
+        updateProfile(mcUUID, profile -> profile.minecraftUser = mcName);
+        writeBehind(DatabaseColumns.minecraftUUID, mcUUID, DatabaseColumns.minecraftUser, mcName);
+        messageableNames.rename(mcUUID, mcName);
     }
 
     public UUID getMinecraftIDFromNickname(@Nonnull String minecraftName) {
-        String uuidString = (String) getColumnFrom(DatabaseColumns.minecraftName, minecraftName, DatabaseColumns.minecraftUUID);
-        if (uuidString == null) return null;
-        return UUID.fromString(uuidString);
+        if (!knownNames.mightContain(minecraftName)) return null;
+        return (UUID) getColumnFrom(DatabaseColumns.minecraftName, minecraftName, DatabaseColumns.minecraftUUID);
     }
 
     public boolean updateMinecraftNickname(@Nonnull UUID account, @Nonnull String nickname) {
         // Check if any other players have the requested name
-        if (getColumnFrom(DatabaseColumns.minecraftUser, nickname, DatabaseColumns.minecraftUser) != null) return false;
-        if (getColumnFrom(DatabaseColumns.minecraftName, nickname, DatabaseColumns.minecraftName) != null) return false;
+        if (knownNames.mightContain(nickname)) {
+            if (getColumnFrom(DatabaseColumns.minecraftUser, nickname, DatabaseColumns.minecraftUser) != null) return false;
+            if (getColumnFrom(DatabaseColumns.minecraftName, nickname, DatabaseColumns.minecraftName) != null) return false;
+        }
+        knownNames.add(nickname);
 
         // Update the account nickname
-        updateColumnFor(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.minecraftName, nickname);
+        // This is written immediately, rather than in the background, so that the uniqueness checks above always see it
+        updateColumnFor(DatabaseColumns.minecraftUUID, account, DatabaseColumns.minecraftName, nickname);
+        updateCachedProfile(account, profile -> profile.minecraftName = nickname);
         return true;
     }
 
     public void setOnlineDiscordDMs(@Nonnull UUID account, boolean value) {
-        updateColumnFor(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.onlineDiscordDMs, value ? 1 : 0);
+        updateProfile(account, profile -> profile.onlineDiscordDMs = value);
+        writeBehind(DatabaseColumns.minecraftUUID, account, DatabaseColumns.onlineDiscordDMs, value ? 1 : 0);
     }
 
     public void setOfflineDiscordDMs(@Nonnull UUID account, boolean value) {
-        updateColumnFor(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.offlineDiscordDMs, value ? 1 : 0);
+        updateProfile(account, profile -> profile.offlineDiscordDMs = value);
+        writeBehind(DatabaseColumns.minecraftUUID, account, DatabaseColumns.offlineDiscordDMs, value ? 1 : 0);
+
+        AccountProfile profile = getProfile(account);
+        if (profile != null) messageableNames.setOfflineMessaging(account, profile.minecraftUser, value);
     }
 
     public void setDeathAlertDelay(@Nonnull UUID account, double seconds) {
-        updateColumnFor(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.deathAlertDelay, seconds);
+        updateProfile(account, profile -> profile.deathAlertDelay = seconds);
+        writeBehind(DatabaseColumns.minecraftUUID, account, DatabaseColumns.deathAlertDelay, seconds);
     }
 
     public void setMessageReplyUsername(@Nonnull UUID account, @Nonnull String destination) {
-        updateColumnFor(DatabaseColumns.minecraftUUID, account.toString(), DatabaseColumns.msgReplyUser, destination);
+        updateProfile(account, profile -> profile.msgReplyUser = destination);
+        writeBehind(DatabaseColumns.minecraftUUID, account, DatabaseColumns.msgReplyUser, destination);
         logger.info("Set message reply username for {} to {}.", account, destination);
     }
 
+    // Methods for death alerts table
+    public void saveDeathAlert(@Nonnull DeathAlertScheduler.DeathAlert alert) {
+        try {
+            write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.UPSERT_DEATH_ALERT);
+                preparedStatement.setBytes(1, uuidToBytes(alert.account()));
+                preparedStatement.setLong(2, alert.diedAt());
+                preparedStatement.setLong(3, alert.alertAt());
+                return preparedStatement.execute();
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to save death alert for '{}'! SQLException message: '{}'\n\tException: {}", alert.account(), e.getMessage(), Arrays.toString(e.getStackTrace()));
+        }
+    }
+
+    public DeathAlertScheduler.DeathAlert getDeathAlert(@Nonnull UUID account) {
+        try {
+            return read(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.SELECT_DEATH_ALERT);
+                preparedStatement.setBytes(1, uuidToBytes(account));
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (!resultSet.next()) return null;
+                    return new DeathAlertScheduler.DeathAlert(account, resultSet.getLong("diedAt"), resultSet.getLong("alertAt"));
+                }
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to load death alert for '{}'! SQLException message: '{}'\n\tException: {}", account, e.getMessage(), Arrays.toString(e.getStackTrace()));
+            return null;
+        }
+    }
+
+    public void deleteDeathAlert(@Nonnull UUID account) {
+        try {
+            write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.DELETE_DEATH_ALERT);
+                preparedStatement.setBytes(1, uuidToBytes(account));
+                return preparedStatement.execute();
+            });
+        } catch (SQLException e) {
+            logger.error("Unable to delete death alert for '{}'! SQLException message: '{}'\n\tException: {}", account, e.getMessage(), Arrays.toString(e.getStackTrace()));
+        }
+    }
+
+    // Deletes alerts for deaths before the given time (in milliseconds since the epoch)
+    public void pruneDeathAlerts(long diedBefore) {
+        try {
+            int deleted = write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.DELETE_STALE_DEATH_ALERTS);
+                preparedStatement.setLong(1, diedBefore);
+                return preparedStatement.executeUpdate();
+            });
+            if (deleted > 0) logger.info("Removed {} stale death alert(s).", deleted);
+        } catch (SQLException e) {
+            logger.error("Unable to remove stale death alerts! SQLException message: '{}'\n\tException: {}", e.getMessage(), Arrays.toString(e.getStackTrace()));
+        }
+    }
+
     // Methods for Discord DMs table
     public void addDiscordDM(@Nonnull String messageID, @Nonnull String senderID, @Nonnull String recipientID) {
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "INSERT INTO discordDMs (messageID, senderID, recipientID) " +
-                            "VALUES (?, ?, ?)"
-            );
-            // Use the account username for both the username and display name fields
-            preparedStatement.setString(1, messageID);
-            preparedStatement.setString(2, senderID);
-            preparedStatement.setString(3, recipientID);
+            write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.INSERT_DISCORD_DM);
+                preparedStatement.setLong(1, Long.parseLong(messageID));
+                preparedStatement.setObject(2, parseSnowflake(senderID));
+                preparedStatement.setObject(3, parseSnowflake(recipientID));
+                preparedStatement.setLong(4, System.currentTimeMillis());
 
-            preparedStatement.execute();
+                return preparedStatement.execute();
+            });
+            recentDiscordDMSenders.put(messageID, senderID);
         } catch (SQLException e) {
             logger.error("Unable to add Discord DM to table! Message ID='{}', sender ID='{}', recipient ID='{}'. SQLException message: '{}'\n\tException: {}", messageID, senderID, recipientID, e.getMessage(), Arrays.toString(e.getStackTrace()));
             throw new RuntimeException(e);
@@ -325,21 +1178,101 @@ public class SQLiteDatabaseConnector {
     }
 
     public String getDiscordDMSender(@Nonnull String messageID) {
+        String cachedSender = recentDiscordDMSenders.get(messageID);
+        if (cachedSender != null) return cachedSender;
+
+        Long messageSnowflake = parseSnowflake(messageID);
+        if (messageSnowflake == null) return null;
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                    "SELECT senderID FROM discordDMs WHERE messageID = ?;"
-            );
-            // Use the account username for both the username and display name fields
-            preparedStatement.setString(1, messageID);
+            return read(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.SELECT_DISCORD_DM_SENDER);
+                preparedStatement.setLong(1, messageSnowflake);
 
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet != null) {
-                return resultSet.getString(1);
-            }
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (resultSet.next()) {
+                        long senderID = resultSet.getLong(1);
+                        return resultSet.wasNull() ? null : Long.toString(senderID);
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             logger.error("Unable to get Discord DM sender! Message ID='{}'. SQLException message: '{}'\n\tException: {}", messageID, e.getMessage(), Arrays.toString(e.getStackTrace()));
             throw new RuntimeException(e);
         }
-        return null;
+    }
+
+    // Deletes Discord DM records older than the retention window, one batch at a time.
+    // If there's more to delete, the next batch is queued behind any other pending database work rather than run
+    // immediately, so a large backlog doesn't delay other writes.
+    private void pruneDiscordDMs() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(config.discordDMRetentionDays);
+        int batchSize = Math.max(1, config.discordDMPruneBatchSize);
+        try {
+            int deleted = write(connection -> {
+                PreparedStatement preparedStatement = getStatement(connection, Query.PRUNE_DISCORD_DMS);
+                preparedStatement.setLong(1, cutoff);
+                preparedStatement.setInt(2, batchSize);
+                return preparedStatement.executeUpdate();
+            });
+            if (deleted >= batchSize && !databaseExecutor.isShutdown()) {
+                databaseExecutor.execute(this::pruneDiscordDMs);
+            }
+        } catch (SQLException e) {
+            logger.error("Unable to prune old Discord DMs! SQLException message: '{}'\n\tException: {}", e.getMessage(), Arrays.toString(e.getStackTrace()));
+        }
+    }
+
+    // Asynchronous versions of the above, for use from event handlers
+    public CompletableFuture<String> checkAllowedToConnectAsync(String minecraftUser, UUID minecraftUUID) {
+        return supplyAsync(() -> checkAllowedToConnect(minecraftUser, minecraftUUID));
+    }
+
+    public CompletableFuture<String> linkDiscordAccountWithCodeAsync(String discordId, String linkCode) {
+        return supplyAsync(() -> linkDiscordAccountWithCode(discordId, linkCode));
+    }
+
+    CompletableFuture<AccountProfile> cacheProfileAsync(@Nonnull UUID account) {
+        return supplyAsync(() -> cacheProfile(account));
+    }
+
+    public CompletableFuture<UUID> getAccountFromDiscordAsync(@Nonnull String discordId) {
+        return supplyReadAsync(() -> getAccountFromDiscord(discordId));
+    }
+
+    public CompletableFuture<Void> saveDeathAlertAsync(@Nonnull DeathAlertScheduler.DeathAlert alert) {
+        return runAsync(() -> saveDeathAlert(alert));
+    }
+
+    public CompletableFuture<DeathAlertScheduler.DeathAlert> getDeathAlertAsync(@Nonnull UUID account) {
+        return supplyReadAsync(() -> getDeathAlert(account));
+    }
+
+    public CompletableFuture<Void> deleteDeathAlertAsync(@Nonnull UUID account) {
+        return runAsync(() -> deleteDeathAlert(account));
+    }
+
+    public CompletableFuture<Void> pruneDeathAlertsAsync(long diedBefore) {
+        return runAsync(() -> pruneDeathAlerts(diedBefore));
+    }
+
+    public CompletableFuture<String> getDiscordIDForAsync(@Nonnull UUID account) {
+        return supplyReadAsync(() -> getDiscordIDFor(account));
+    }
+
+    public CompletableFuture<String> getMinecraftNicknameForAsync(@Nonnull UUID account) {
+        return supplyReadAsync(() -> getMinecraftNicknameFor(account));
+    }
+
+    public CompletableFuture<Void> addDiscordDMAsync(@Nonnull String messageID, @Nonnull String senderID, @Nonnull String recipientID) {
+        // Remember the sender right away, in case the recipient replies before the row has been written
+        recentDiscordDMSenders.put(messageID, senderID);
+        return runAsync(() -> addDiscordDM(messageID, senderID, recipientID));
+    }
+
+    public CompletableFuture<String> getDiscordDMSenderAsync(@Nonnull String messageID) {
+        String cachedSender = recentDiscordDMSenders.get(messageID);
+        if (cachedSender != null) return CompletableFuture.completedFuture(cachedSender);
+        return supplyReadAsync(() -> getDiscordDMSender(messageID));
     }
 }
@@ -0,0 +1,48 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import com.velocitypowered.api.command.SimpleCommand;
+import com.velocitypowered.api.proxy.Player;
+
+import java.util.List;
+
+public class StatsCommand implements SimpleCommand {
+    private final DiscordBot discordBot;
+
+    public StatsCommand(DiscordBot discordBot) {
+        this.discordBot = discordBot;
+    }
+
+    @Override
+    public void execute(Invocation invocation) {
+        // If a player asked for the stats, check if they have permission to see them
+        // If the console asked, permission is automatically granted
+        if (invocation.source() instanceof Player sender) {
+            if (!sender.hasPermission("discord.stats")) return;
+        }
+
+        // How backed up each kind of Discord message is
+        StringBuilder stats = new StringBuilder("Discord send queue:");
+        for (DiscordSendScheduler.Priority priority : DiscordSendScheduler.Priority.values()) {
+            stats.append(String.format("\n %s: %d queued, %.1f ms average wait, %d ms longest wait",
+                    priority,
+                    discordBot.getSendQueueDepth(priority),
+                    discordBot.getAverageSendWaitMillis(priority),
+                    discordBot.getMaxSendWaitMillis(priority)
+            ));
+        }
+
+        // How big the guild member cache is, and how long reloading it takes
+        stats.append(String.format("\nDiscord members: %d cached, %d full reloads, last took %d ms",
+                discordBot.getCachedMemberCount(),
+                discordBot.getMemberResyncCount(),
+                discordBot.getLastMemberResyncMillis()
+        ));
+        invocation.source().sendPlainMessage(stats.toString());
+    }
+
+    @Override
+    public List<String> suggest(Invocation invocation) {
+        // Return empty list (i.e. no suggestions) because it doesn't take any arguments
+        return List.of();
+    }
+}
@@ -0,0 +1,125 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.exception.HttpException;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import club.minnced.discord.webhook.send.WebhookMessage;
+import net.dv8tion.jda.api.entities.Webhook;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Keeps one long-lived WebhookClient per webhook, rather than creating (and closing) a client for every message.
+// All the clients share JDA's HTTP client and a single small thread pool, instead of each one starting its own.
+class WebhookClientRegistry implements AutoCloseable {
+    // The webhook library sends each request synchronously on the pool, so allow a few to be in flight at once
+    private static final int THREADS = 4;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    enum SendResult {
+        SUCCESS,
+        // Discord rate limited the request and the library gave up retrying it
+        RATE_LIMITED,
+        // The webhook no longer exists (e.g. it was deleted from the channel settings)
+        NOT_FOUND,
+        FAILED
+    }
+
+    private final Logger logger;
+    private final OkHttpClient httpClient;
+    private final Map<String, WebhookClient> clients = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "MinecraftDiscordPlugin Webhook Sender");
+        thread.setDaemon(true);
+        return thread;
+    }) {
+        // WebhookClient.close() shuts down its executor, but this one is shared between all the clients, so it's only
+        // shut down along with the registry
+        @Override
+        public void shutdown() {
+            if (closed) super.shutdown();
+        }
+    };
+
+    // The rate limit listener is given the webhook ID and headers of every response Discord sends to a webhook request
+    WebhookClientRegistry(Logger logger, OkHttpClient httpClient, BiConsumer<String, Headers> rateLimitListener) {
+        this.logger = logger;
+        // Derived clients share the original's connection pool and dispatcher
+        this.httpClient = httpClient.newBuilder().addInterceptor(chain -> {
+            Response response = chain.proceed(chain.request());
+            List<String> path = chain.request().url().pathSegments();
+            int webhooksIndex = path.indexOf("webhooks");
+            if (webhooksIndex >= 0 && webhooksIndex + 1 < path.size()) {
+                rateLimitListener.accept(path.get(webhooksIndex + 1), response.headers());
+            }
+            return response;
+        }).build();
+    }
+
+    private WebhookClient getClient(Webhook webhook) {
+        return clients.computeIfAbsent(webhook.getId(), id -> new WebhookClientBuilder(webhook.getUrl())
+                .setHttpClient(httpClient)
+                .setExecutorService(scheduler)
+                .setDaemon(true)
+                .build()
+        );
+    }
+
+    // Sends the message through the webhook, completing with the result once Discord has responded.
+    // If onSent isn't null, it's given the message Discord created.
+    CompletableFuture<SendResult> send(Webhook webhook, WebhookMessage message, Consumer<ReadonlyMessage> onSent) {
+        if (closed) return CompletableFuture.completedFuture(SendResult.FAILED);
+
+        return getClient(webhook).send(message).handle((sentMessage, throwable) -> {
+            if (throwable == null) {
+                if (onSent != null) onSent.accept(sentMessage);
+                return SendResult.SUCCESS;
+            }
+
+            if (throwable instanceof CompletionException && throwable.getCause() != null) throwable = throwable.getCause();
+            if (throwable instanceof HttpException httpException) {
+                if (httpException.getCode() == 429) return SendResult.RATE_LIMITED;
+                if (httpException.getCode() == 404) {
+                    // Stop using the client for a webhook that's gone. It isn't closed, since that would also shut
+                    // down the shared thread pool, but it doesn't own any other resources.
+                    clients.remove(webhook.getId());
+                    return SendResult.NOT_FOUND;
+                }
+            }
+            logger.error("Unable to send webhook message: {}", throwable.toString());
+            return SendResult.FAILED;
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        clients.values().forEach(WebhookClient::close);
+        clients.clear();
+
+        // Give queued messages a chance to finish sending
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import net.dv8tion.jda.api.entities.Webhook;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A fixed number of webhooks in the chat channel, shared by everyone who chats. Each message sets its own username
+// and avatar, so the webhooks themselves don't need to belong to a particular player.
+// Senders are striped across the webhooks by key (the sender's name), which keeps each sender's messages in order on
+// one webhook while spreading different senders over the webhooks' separate rate limits.
+// Each slot holds at most one creation request at a time, so concurrent messages can't create duplicate webhooks.
+class WebhookPool {
+    // Discord allows at most 15 webhooks per channel
+    static final int MAX_SIZE = 15;
+    private static final String WEBHOOK_NAME = "Minecraft Chat Relay";
+
+    private final TextChannel channel;
+    private final AtomicReferenceArray<CompletableFuture<Webhook>> slots;
+
+    WebhookPool(TextChannel channel, int size) {
+        this.channel = channel;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, Math.min(MAX_SIZE, size)));
+    }
+
+    // Puts existing webhooks (from a previous run) into any empty slots.
+    // Returns the webhooks that didn't fit, which should be deleted.
+    List<Webhook> adopt(List<Webhook> webhooks) {
+        List<Webhook> leftovers = new ArrayList<>();
+        int slot = 0;
+        for (Webhook webhook : webhooks) {
+            while (slot < slots.length() && !slots.compareAndSet(slot, null, CompletableFuture.completedFuture(webhook))) {
+                slot++;
+            }
+            if (slot >= slots.length()) {
+                leftovers.add(webhook);
+            }
+            slot++;
+        }
+        return leftovers;
+    }
+
+    private int slotFor(String key) {
+        return Math.floorMod(Objects.hashCode(key), slots.length());
+    }
+
+    // Name of the send route for the given key's webhook. Since it's based on the slot rather than the webhook itself,
+    // it's known before the webhook is created and stays the same if it's replaced.
+    String routeFor(String key) {
+        return "webhook-pool:" + slotFor(key);
+    }
+
+    // Name of the send route for the given webhook, or null if it isn't in the pool
+    String routeForWebhook(String webhookId) {
+        for (int slot = 0; slot < slots.length(); slot++) {
+            CompletableFuture<Webhook> webhook = slots.get(slot);
+            if (webhook != null && webhook.isDone() && !webhook.isCompletedExceptionally() && webhook.join().getId().equals(webhookId)) {
+                return "webhook-pool:" + slot;
+            }
+        }
+        return null;
+    }
+
+    // Returns the webhook to use for the given key, creating it if its slot is empty
+    CompletableFuture<Webhook> get(String key) {
+        int slot = slotFor(key);
+        while (true) {
+            CompletableFuture<Webhook> webhook = slots.get(slot);
+            if (webhook != null && !webhook.isCompletedExceptionally()) return webhook;
+
+            // Only the thread that claims the slot creates the webhook, everyone else waits on the same future
+            CompletableFuture<Webhook> created = new CompletableFuture<>();
+            if (slots.compareAndSet(slot, webhook, created)) {
+                channel.createWebhook(WEBHOOK_NAME + " #" + (slot + 1)).queue(created::complete, created::completeExceptionally);
+                return created;
+            }
+        }
+    }
+
+    // Forgets the given webhook (e.g. because it was deleted), so the next get() for its slot creates a new one
+    void invalidate(String key, Webhook webhook) {
+        int slot = slotFor(key);
+        CompletableFuture<Webhook> current = slots.get(slot);
+        if (current == null || !current.isDone() || current.isCompletedExceptionally()) return;
+        if (current.join().getId().equals(webhook.getId())) {
+            slots.compareAndSet(slot, current, null);
+        }
+    }
+}
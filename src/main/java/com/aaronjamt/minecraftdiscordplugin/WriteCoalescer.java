@@ -0,0 +1,53 @@
+package com.aaronjamt.minecraftdiscordplugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Collects column updates that don't need to hit the database immediately (such as /msg reply targets), keeping only
+// the latest value for each (account, column) pair so that they can be written together in a single transaction.
+class WriteCoalescer {
+    record PendingWrite(SQLiteDatabaseConnector.DatabaseColumns searchColumn, Object searchValue, SQLiteDatabaseConnector.DatabaseColumns targetColumn) {}
+
+    private final int maxPendingWrites;
+    private Map<PendingWrite, Object> pendingWrites = new LinkedHashMap<>();
+    // Writes that have been drained but not written yet
+    private Map<PendingWrite, Object> flushingWrites = Map.of();
+
+    WriteCoalescer(int maxPendingWrites) {
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+    }
+
+    // Queues a write, replacing any pending write to the same column for the same account.
+    // Returns true once enough writes are pending that they should be flushed now rather than waiting.
+    synchronized boolean add(PendingWrite write, Object value) {
+        // Remove first so that the write moves to the end, keeping writes in the order of their latest update
+        pendingWrites.remove(write);
+        pendingWrites.put(write, value);
+        return pendingWrites.size() >= maxPendingWrites;
+    }
+
+    // Returns all pending writes and clears the queue. The drained writes still count as pending (for
+    // hasPendingWrites()) until finished() is called, so only one drain should be in progress at a time.
+    synchronized Map<PendingWrite, Object> drain() {
+        Map<PendingWrite, Object> writes = pendingWrites;
+        pendingWrites = new LinkedHashMap<>();
+        flushingWrites = writes;
+        return writes;
+    }
+
+    // Called once the drained writes have been written (or have failed)
+    synchronized void finished() {
+        flushingWrites = Map.of();
+    }
+
+    // Whether any writes for the given search value (e.g. an account UUID) are queued or still being written
+    synchronized boolean hasPendingWrites(Object searchValue) {
+        for (PendingWrite write : pendingWrites.keySet()) {
+            if (write.searchValue().equals(searchValue)) return true;
+        }
+        for (PendingWrite write : flushingWrites.keySet()) {
+            if (write.searchValue().equals(searchValue)) return true;
+        }
+        return false;
+    }
+}